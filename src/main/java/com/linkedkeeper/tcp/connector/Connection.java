@@ -30,6 +30,9 @@
 
 package com.linkedkeeper.tcp.connector;
 
+import com.linkedkeeper.tcp.message.Priority;
+import io.netty.util.concurrent.Future;
+
 /**
  * Created by frank@linkedkeeper.com on 17/1/10.
  */
@@ -41,6 +44,16 @@ public interface Connection<T> {
 
     void send(T message);
 
+    /**
+     * Send without blocking or throwing, the future fails if the message cannot be written.
+     */
+    Future<Void> sendAsync(T message);
+
+    /**
+     * @param priority outbound priority, chosen by cmd if null
+     */
+    Future<Void> sendAsync(T message, Priority priority);
+
     String getConnectionId();
 
     void setConnectionId(String connectionId);
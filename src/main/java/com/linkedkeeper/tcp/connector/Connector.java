@@ -30,6 +30,11 @@
 
 package com.linkedkeeper.tcp.connector;
 
+import com.linkedkeeper.tcp.message.Priority;
+import io.netty.util.concurrent.Future;
+
+import java.util.Collection;
+
 /**
  * Created by frank@linkedkeeper.com on 17/1/10.
  */
@@ -41,6 +46,21 @@ public interface Connector<T> {
 
     void send(String sessionId, T message) throws Exception;
 
+    /**
+     * @return future of the write, fails if the message cannot be written
+     * @throws Exception if the session does not exist
+     */
+    Future<Void> sendAsync(String sessionId, T message) throws Exception;
+
+    Future<Void> sendAsync(String sessionId, T message, Priority priority) throws Exception;
+
     boolean exist(String sessionId) throws Exception;
 
+    /**
+     * Send one message to many sessions, the message is encoded once.
+     */
+    BroadcastResult broadcast(Collection<String> sessionIds, T message) throws Exception;
+
+    BroadcastResult broadcast(SessionFilter filter, T message) throws Exception;
+
 }
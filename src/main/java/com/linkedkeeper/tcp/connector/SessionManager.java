@@ -30,6 +30,7 @@
 
 package com.linkedkeeper.tcp.connector;
 
+import java.util.Collection;
 import java.util.Set;
 
 /**
@@ -75,6 +76,15 @@ public interface SessionManager {
      */
     Session[] getSessions();
 
+    /**
+     * 根据索引属性的值获取session分组，如 appKey、platform、deviceId
+     *
+     * @param attribute 索引属性
+     * @param value     属性值
+     * @return
+     */
+    Collection<Session> getSessions(String attribute, Object value);
+
     /**
      * 获取所有的session的id集合
      *
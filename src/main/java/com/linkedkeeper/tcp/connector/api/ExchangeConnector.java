@@ -34,7 +34,11 @@ import com.linkedkeeper.tcp.connector.Connector;
 import com.linkedkeeper.tcp.connector.Session;
 import com.linkedkeeper.tcp.connector.SessionManager;
 import com.linkedkeeper.tcp.exception.DispatchException;
+import com.linkedkeeper.tcp.exception.BackpressureException;
 import com.linkedkeeper.tcp.exception.PushException;
+import com.linkedkeeper.tcp.message.Priority;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,4 +67,30 @@ public abstract class ExchangeConnector<T> implements Connector<T> {
             throw new DispatchException(e);
         }
     }
+
+    public Future<Void> sendAsync(SessionManager sessionManager, String sessionId, T message) throws Exception {
+        return sendAsync(sessionManager, sessionId, message, null);
+    }
+
+    public Future<Void> sendAsync(SessionManager sessionManager, String sessionId, T message, Priority priority) throws Exception {
+        final Session session = sessionManager.getSession(sessionId);
+        if (session == null) {
+            throw new Exception(String.format("session %s no exist.", sessionId));
+        }
+        Future<Void> future = session.getConnection().sendAsync(message, priority);
+        future.addListener(new GenericFutureListener<Future<Void>>() {
+            public void operationComplete(Future<Void> future) throws Exception {
+                if (future.isSuccess()) {
+                    session.access();
+                } else if (future.cause() instanceof BackpressureException) {
+                    // dropped by the backpressure policy, the session is slow but still alive
+                    logger.warn("ExchangeConnector sendAsync dropped, session -> " + session.getSessionId() + ", " + future.cause().getMessage());
+                } else {
+                    logger.error("ExchangeConnector sendAsync failed, close the session.", future.cause());
+                    session.close();
+                }
+            }
+        });
+        return future;
+    }
 }
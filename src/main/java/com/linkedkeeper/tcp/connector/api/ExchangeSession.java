@@ -202,6 +202,18 @@ public class ExchangeSession extends SessionValid {
         listeners.remove(listener);
     }
 
+    /**
+     * Set the attribute, then let the manager update its index of the attribute.
+     */
+    @Override
+    public void setAttribute(String name, Object value) {
+        super.setAttribute(name, value);
+        SessionManager manager = sessionManager;
+        if (name != null && manager instanceof ExchangeSessionManager) {
+            ((ExchangeSessionManager) manager).attributeChanged(this, name, value);
+        }
+    }
+
     public void setSessionId(String sessionId) {
         this.sessionId = sessionId;
     }
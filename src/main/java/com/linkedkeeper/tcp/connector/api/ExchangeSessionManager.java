@@ -33,13 +33,15 @@ package com.linkedkeeper.tcp.connector.api;
 import com.linkedkeeper.tcp.connector.Session;
 import com.linkedkeeper.tcp.connector.SessionManager;
 import com.linkedkeeper.tcp.connector.api.listener.SessionListener;
+import com.linkedkeeper.tcp.constant.Constants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by frank@linkedkeeper.com on 17/1/10.
@@ -56,40 +58,147 @@ public abstract class ExchangeSessionManager implements SessionManager {
 
     /**
      * The set of currently active Sessions for this Manager, keyed by session
-     * identifier.
+     * identifier. All the updates are atomic operations of the map, no lock
+     * is held on the manager.
      */
-    protected Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    protected ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
 
-    public synchronized void addSession(Session session) {
+    /**
+     * Secondary indexes of the sessions, keyed by attribute name. appKey, platform
+     * and deviceId are always indexed, more attributes can be configured.
+     */
+    private final ConcurrentMap<String, SessionIndex> indexes = new ConcurrentHashMap<String, SessionIndex>();
+
+    {
+        addIndex(Constants.SESSION_APP_KEY);
+        addIndex(Constants.SESSION_PLATFORM);
+        addIndex(Constants.SESSION_DEVICE_ID);
+    }
+
+    private void addIndex(String attribute) {
+        indexes.putIfAbsent(attribute, new SessionIndex(attribute));
+    }
+
+    /**
+     * @param attributes user-defined attributes to index besides appKey, platform and deviceId
+     */
+    public void setIndexedAttributes(List<String> attributes) {
+        for (String attribute : attributes) {
+            addIndex(attribute);
+        }
+    }
+
+    public void addSession(Session session) {
         if (null == session) {
             return;
         }
-        sessions.put(session.getSessionId(), session);
+        Session old = sessions.put(session.getSessionId(), session);
         logger.debug("put a session " + session.getSessionId() + " to sessions!");
+        index(session);
+        if (old != null && old != session) {
+            /**
+             * 如果在已经建立Connection(1)的Channel上，再建立Connection(2)
+             * session.close会将ctx关闭， Connection(2)和Connection(1)的Channel都将会关闭
+             * 断线之后再建立连接Connection(3)，由于Session是有一点延迟
+             * Connection(3)和Connection(1/2)的Channel不是同一个
+             * **/
+            // 如果session已经存在则销毁旧的session，旧session只会从map中删除它自己
+            logger.info("session " + session.getSessionId() + " exist, close the old one!");
+            old.close();
+        }
     }
 
-    public synchronized void updateSession(String sessionId) {
+    /**
+     * Only touch the session's own volatile access time.
+     */
+    public void updateSession(String sessionId) {
         Session session = sessions.get(sessionId);
-        session.setLastAccessedTime(System.currentTimeMillis());
-
-        sessions.put(sessionId, session);
+        if (session != null) {
+            session.setLastAccessedTime(System.currentTimeMillis());
+        }
     }
 
     /**
-     * Remove this Session from the active Sessions for this Manager.
+     * Remove this Session from the active Sessions for this Manager, only if
+     * it is still the one mapped to its id, so a replaced session never
+     * removes its successor. A recycled session has no id and is no longer
+     * mapped.
      */
-    public synchronized void removeSession(Session session) {
+    public void removeSession(Session session) {
         if (session == null) {
             throw new IllegalArgumentException("session is null!");
         }
-        removeSession(session.getSessionId());
+        String sessionId = session.getSessionId();
+        if (sessionId != null && sessions.remove(sessionId, session)) {
+            logger.debug("remove the session " + sessionId + " from sessions!");
+        }
+        unindex(session);
     }
 
-    public synchronized void removeSession(String sessionId) {
-        sessions.remove(sessionId);
+    public void removeSession(String sessionId) {
+        Session session = sessions.remove(sessionId);
+        if (session != null) {
+            unindex(session);
+        }
         logger.debug("remove the session " + sessionId + " from sessions!");
     }
 
+    /**
+     * Called by the session when one of its attributes is set, keeps the index of
+     * the attribute in sync once the session is managed.
+     */
+    public void attributeChanged(Session session, String attribute, Object value) {
+        SessionIndex index = indexes.get(attribute);
+        if (index == null) {
+            return;
+        }
+        synchronized (session) {
+            if (isIndexable(session)) {
+                index.index(session, value);
+            }
+        }
+    }
+
+    /**
+     * Indexing and unindexing of one session hold the session's lock, which is also held by its close,
+     * so a session closed or removed meanwhile is never left in an index.
+     */
+    private void index(Session session) {
+        synchronized (session) {
+            if (!isIndexable(session)) {
+                return;
+            }
+            for (SessionIndex index : indexes.values()) {
+                index.index(session, session.getAttribute(index.getAttribute()));
+            }
+        }
+    }
+
+    private boolean isIndexable(Session session) {
+        return session.isValid() && sessions.get(session.getSessionId()) == session;
+    }
+
+    private void unindex(Session session) {
+        synchronized (session) {
+            for (SessionIndex index : indexes.values()) {
+                index.unindex(session);
+            }
+        }
+    }
+
+    public Collection<Session> getSessions(String attribute, Object value) {
+        SessionIndex index = indexes.get(attribute);
+        if (index == null) {
+            throw new IllegalArgumentException("attribute " + attribute + " is not indexed!");
+        }
+        return index.get(value);
+    }
+
+    public int getSessionCount(String attribute, Object value) {
+        SessionIndex index = indexes.get(attribute);
+        return index != null ? index.size(value) : 0;
+    }
+
     public Session getSession(String sessionId) {
         return sessions.get(sessionId);
     }
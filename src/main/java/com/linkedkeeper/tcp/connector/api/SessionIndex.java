@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.api;
+
+import com.linkedkeeper.tcp.connector.Session;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Secondary index of the sessions by the value of one attribute.
+ * <p>
+ * The sessions of a value are kept in a group, a group is removed when its last session leaves, so unique
+ * values like deviceId do not leave empty groups behind. Mutations of a group lock the group only, lookups
+ * take no lock and return a live view of the group.
+ */
+class SessionIndex {
+
+    private final String attribute;
+
+    private final ConcurrentMap<Object, Group> groups = new ConcurrentHashMap<Object, Group>();
+    /**
+     * value under which each session is indexed
+     */
+    private final ConcurrentMap<Session, Object> values = new ConcurrentHashMap<Session, Object>();
+
+    SessionIndex(String attribute) {
+        this.attribute = attribute;
+    }
+
+    String getAttribute() {
+        return attribute;
+    }
+
+    void index(Session session, Object value) {
+        if (value == null) {
+            unindex(session);
+            return;
+        }
+        Object old = values.put(session, value);
+        if (value.equals(old)) {
+            return;
+        }
+        if (old != null) {
+            remove(old, session);
+        }
+        add(value, session);
+    }
+
+    void unindex(Session session) {
+        Object old = values.remove(session);
+        if (old != null) {
+            remove(old, session);
+        }
+    }
+
+    Collection<Session> get(Object value) {
+        Group group = value != null ? groups.get(value) : null;
+        return group != null ? Collections.unmodifiableSet(group.sessions) : Collections.<Session>emptySet();
+    }
+
+    int size(Object value) {
+        Group group = value != null ? groups.get(value) : null;
+        return group != null ? group.sessions.size() : 0;
+    }
+
+    int groupCount() {
+        return groups.size();
+    }
+
+    private void add(Object value, Session session) {
+        for (; ; ) {
+            Group group = groups.get(value);
+            if (group == null) {
+                Group created = new Group();
+                group = groups.putIfAbsent(value, created);
+                if (group == null) {
+                    group = created;
+                }
+            }
+            synchronized (group) {
+                // the group was emptied and removed meanwhile, retry with a new one
+                if (!group.removed) {
+                    group.sessions.add(session);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void remove(Object value, Session session) {
+        Group group = groups.get(value);
+        if (group == null) {
+            return;
+        }
+        synchronized (group) {
+            group.sessions.remove(session);
+            if (group.sessions.isEmpty()) {
+                group.removed = true;
+                groups.remove(value, group);
+            }
+        }
+    }
+
+    private static final class Group {
+
+        private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+        private boolean removed = false;
+    }
+}
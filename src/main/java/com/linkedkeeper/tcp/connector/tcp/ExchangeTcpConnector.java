@@ -30,10 +30,19 @@
 
 package com.linkedkeeper.tcp.connector.tcp;
 
+import com.google.protobuf.MessageLite;
+import com.linkedkeeper.tcp.connector.BroadcastResult;
 import com.linkedkeeper.tcp.connector.Session;
+import com.linkedkeeper.tcp.connector.SessionFilter;
 import com.linkedkeeper.tcp.connector.api.ExchangeConnector;
 import com.linkedkeeper.tcp.message.MessageWrapper;
+import com.linkedkeeper.tcp.message.Priority;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 public abstract class ExchangeTcpConnector<T> extends ExchangeConnector<T> {
 
@@ -50,6 +59,14 @@ public abstract class ExchangeTcpConnector<T> extends ExchangeConnector<T> {
      */
     public abstract void heartbeatClient(MessageWrapper wrapper);
 
+    /**
+     * 会话心跳，直接使用 channel 上绑定的 session
+     *
+     * @param ctx
+     * @param wrapper
+     */
+    public abstract void heartbeatClient(ChannelHandlerContext ctx, MessageWrapper wrapper);
+
     /**
      * 接收客户端消息通知响应
      *
@@ -63,6 +80,55 @@ public abstract class ExchangeTcpConnector<T> extends ExchangeConnector<T> {
         super.send(tcpSessionManager, sessionId, message);
     }
 
+    public Future<Void> sendAsync(String sessionId, T message) throws Exception {
+        return super.sendAsync(tcpSessionManager, sessionId, message);
+    }
+
+    public Future<Void> sendAsync(String sessionId, T message, Priority priority) throws Exception {
+        return super.sendAsync(tcpSessionManager, sessionId, message, priority);
+    }
+
+    public BroadcastResult broadcast(Collection<String> sessionIds, T message) throws Exception {
+        List<Session> targets = new ArrayList<Session>(sessionIds.size());
+        int missed = 0;
+        for (String sessionId : sessionIds) {
+            Session session = tcpSessionManager.getSession(sessionId);
+            if (session != null) {
+                targets.add(session);
+            } else {
+                missed++;
+            }
+        }
+        return TcpBroadcaster.broadcast(targets, missed, toMessageLite(message));
+    }
+
+    public BroadcastResult broadcast(SessionFilter filter, T message) throws Exception {
+        List<Session> targets = new ArrayList<Session>();
+        for (Session session : tcpSessionManager.getSessions()) {
+            if (filter.accept(session)) {
+                targets.add(session);
+            }
+        }
+        return TcpBroadcaster.broadcast(targets, 0, toMessageLite(message));
+    }
+
+    /**
+     * Broadcast to the sessions indexed under the value of the attribute, e.g. all the sessions of one appKey.
+     */
+    public BroadcastResult broadcast(String attribute, Object value, T message) throws Exception {
+        return TcpBroadcaster.broadcast(tcpSessionManager.getSessions(attribute, value), 0, toMessageLite(message));
+    }
+
+    private MessageLite toMessageLite(T message) {
+        if (message instanceof MessageLite) {
+            return (MessageLite) message;
+        }
+        if (message instanceof MessageLite.Builder) {
+            return ((MessageLite.Builder) message).build();
+        }
+        throw new IllegalArgumentException("broadcast message must be a protobuf message: " + message);
+    }
+
     public boolean exist(String sessionId) throws Exception {
         Session session = tcpSessionManager.getSession(sessionId);
         return session != null ? true : false;
@@ -30,65 +30,41 @@
 
 package com.linkedkeeper.tcp.connector.tcp;
 
-import com.linkedkeeper.tcp.exception.LostConnectException;
-import com.linkedkeeper.tcp.exception.PushException;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class NoKeepAliveTcpConnection<T> {
+/**
+ * One-shot reply for clients without keep-alive, write, flush and close the channel
+ * without blocking the event loop.
+ */
+public final class NoKeepAliveTcpConnection {
 
     private final static Logger logger = LoggerFactory.getLogger(NoKeepAliveTcpConnection.class);
 
-    private ChannelHandlerContext cxt;
-
-    public NoKeepAliveTcpConnection(ChannelHandlerContext cxt) {
-        this.cxt = cxt;
-    }
-
-    public void close() {
-        cxt.close();
-        logger.info("the connection have been destroyed!");
-    }
-
-    public void send(T message) {
-        sendMessage(message);
-    }
+    /**
+     * shared by all replies, so nothing but the write promise is allocated per message
+     */
+    private static final ChannelFutureListener CLOSE_AFTER_SEND = new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.isSuccess()) {
+                logger.debug("send success.");
+            } else {
+                logger.warn("NoKeepAliveTcpConnection send failed, channel -> " + future.channel(), future.cause());
+            }
+            future.channel().close();
+        }
+    };
 
-    private void sendMessage(T message) {
-        pushMessage(message);
+    private NoKeepAliveTcpConnection() {
     }
 
-    private void pushMessage(T message) {
-        boolean success = true;
-        boolean sent = true;
-        int timeout = 60;
-        try {
-            ChannelFuture cf = cxt.write(message);
-            cxt.flush();
-            if (sent) {
-                success = cf.await(timeout);
-            }
-            if (cf.isSuccess()) {
-                logger.info("send success.");
-            }
-            Throwable cause = cf.cause();
-            if (cause != null) {
-                throw new PushException(cause);
-            }
-        } catch (LostConnectException e) {
-            logger.error("NoKeepAliveTcpConnection pushMessage occur LostConnectException.", e);
-            throw new PushException(e);
-        } catch (Exception e) {
-            logger.error("NoKeepAliveTcpConnection pushMessage occur Exception.", e);
-            throw new PushException(e);
-        } catch (Throwable e) {
-            logger.error("NoKeepAliveTcpConnection pushMessage occur Throwable.", e);
-            throw new PushException("Failed to send message, cause: " + e.getMessage(), e);
-        }
-        if (!success) {
-            throw new PushException("Failed to send message, in timeout(" + timeout + "ms) limit");
+    public static ChannelFuture send(ChannelHandlerContext ctx, Object message) {
+        if (message == null) {
+            return ctx.close();
         }
+        return ctx.writeAndFlush(message).addListener(CLOSE_AFTER_SEND);
     }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp;
+
+import com.google.protobuf.MessageLite;
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
+import com.linkedkeeper.tcp.connector.tcp.config.BackpressureMetrics;
+import com.linkedkeeper.tcp.connector.tcp.config.BackpressurePolicy;
+import com.linkedkeeper.tcp.connector.tcp.config.TcpConnectionConfig;
+import com.linkedkeeper.tcp.exception.BackpressureException;
+import com.linkedkeeper.tcp.exception.PushException;
+import com.linkedkeeper.tcp.message.Priority;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Outbound priority lanes of one connection.
+ * <p>
+ * Messages are queued in bounded lanes on the event loop and written by a drain task, once per event loop
+ * tick. Each round writes up to the weight of every lane in priority order and then flushes, so control
+ * messages overtake queued bulk messages while bulk still progresses. Draining stops while the channel is
+ * not writable and resumes when it becomes writable again.
+ * <p>
+ * The backpressure policy of the connection applies to each lane: while the channel is not writable DROP_NEW
+ * fails new messages and COALESCE replaces the queued message of the same cmd, and beyond the lane limits
+ * DROP_OLDEST and COALESCE drop the oldest messages of the lane, the other policies the new one.
+ */
+final class OutboundScheduler {
+
+    private final ChannelHandlerContext ctx;
+    private final TcpConnectionConfig config;
+    private final BackpressureMetrics metrics;
+
+    private final BackpressurePolicy policy;
+    private final ArrayDeque<Pending>[] lanes;
+    private final int[] weights;
+    private final int maxLaneMessages;
+    private final int maxLaneBytes;
+
+    // only used by the event loop
+    private boolean drainScheduled = false;
+    private final int[] laneBytes;
+
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            drainScheduled = false;
+            drain();
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    OutboundScheduler(ChannelHandlerContext ctx, TcpConnectionConfig config) {
+        this.ctx = ctx;
+        this.config = config;
+        this.metrics = config.getBackpressureMetrics();
+        this.weights = config.getLaneWeights();
+        this.maxLaneMessages = config.getMaxLaneMessages();
+        this.maxLaneBytes = config.getMaxLaneBytes();
+        this.policy = config.getBackpressurePolicy();
+        this.laneBytes = new int[Priority.values().length];
+        this.lanes = new ArrayDeque[Priority.values().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<Pending>();
+        }
+    }
+
+    /**
+     * Queue the message on the event loop, builders are built here so the lane knows the size.
+     */
+    ChannelFuture enqueue(Object msg, Priority priority) {
+        final Object message = msg instanceof MessageLite.Builder ? ((MessageLite.Builder) msg).build() : msg;
+        final Priority lane = priority != null ? priority
+                : message instanceof MessageBuf.JMTransferOrBuilder ? config.priorityOf(((MessageBuf.JMTransferOrBuilder) message).getCmd())
+                : Priority.INTERACTIVE;
+        final ChannelPromise promise = ctx.newPromise();
+        if (ctx.executor().inEventLoop()) {
+            enqueue0(message, lane, promise);
+        } else {
+            try {
+                ctx.executor().execute(new Runnable() {
+                    public void run() {
+                        enqueue0(message, lane, promise);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                ReferenceCountUtil.release(message);
+                promise.setFailure(e);
+            }
+        }
+        return promise;
+    }
+
+    private void enqueue0(Object message, Priority priority, ChannelPromise promise) {
+        if (!ctx.channel().isActive()) {
+            ReferenceCountUtil.release(message);
+            promise.tryFailure(new PushException("Use a closed pushSocked!"));
+            return;
+        }
+        int index = priority.ordinal();
+        ArrayDeque<Pending> lane = lanes[index];
+        Pending pending = new Pending(message, promise, sizeOf(message));
+        boolean writable = ctx.channel().isWritable();
+        if (policy == BackpressurePolicy.DROP_NEW && !writable) {
+            drop(pending, "channel not writable, message dropped.");
+            return;
+        }
+        if (policy == BackpressurePolicy.COALESCE && !writable && message instanceof MessageBuf.JMTransferOrBuilder) {
+            int cmd = ((MessageBuf.JMTransferOrBuilder) message).getCmd();
+            Iterator<Pending> it = lane.iterator();
+            while (it.hasNext()) {
+                Pending old = it.next();
+                if (old.message instanceof MessageBuf.JMTransferOrBuilder && ((MessageBuf.JMTransferOrBuilder) old.message).getCmd() == cmd) {
+                    it.remove();
+                    laneBytes[index] -= old.size;
+                    drop(old, "message coalesced by a newer one.");
+                }
+            }
+        }
+        if (policy == BackpressurePolicy.DROP_OLDEST || policy == BackpressurePolicy.COALESCE) {
+            while (!lane.isEmpty() && overLimits(index, pending)) {
+                Pending oldest = lane.poll();
+                laneBytes[index] -= oldest.size;
+                drop(oldest, "lane " + priority + " is full, message dropped.");
+            }
+        } else if (!lane.isEmpty() && overLimits(index, pending)) {
+            drop(pending, "lane " + priority + " is full, message dropped.");
+            return;
+        }
+        lane.add(pending);
+        laneBytes[index] += pending.size;
+        if (!drainScheduled) {
+            drainScheduled = true;
+            ctx.executor().execute(drainTask);
+        }
+    }
+
+    private boolean overLimits(int index, Pending pending) {
+        return lanes[index].size() >= maxLaneMessages || laneBytes[index] + pending.size > maxLaneBytes;
+    }
+
+    private void drop(Pending pending, String reason) {
+        metrics.dropped(pending.size);
+        ReferenceCountUtil.release(pending.message);
+        pending.promise.tryFailure(new BackpressureException(reason));
+    }
+
+    /**
+     * Write weighted rounds while the channel is writable, flush after every round.
+     */
+    void drain() {
+        boolean pending = true;
+        while (pending && ctx.channel().isWritable()) {
+            pending = false;
+            boolean written = false;
+            for (int i = 0; i < lanes.length; i++) {
+                ArrayDeque<Pending> lane = lanes[i];
+                for (int n = 0; n < weights[i] && !lane.isEmpty() && ctx.channel().isWritable(); n++) {
+                    Pending p = lane.poll();
+                    laneBytes[i] -= p.size;
+                    ctx.write(p.message, p.promise);
+                    written = true;
+                }
+                pending |= !lane.isEmpty();
+            }
+            if (written) {
+                ctx.flush();
+            }
+        }
+    }
+
+    /**
+     * Fail all the queued messages, the channel is closed.
+     */
+    void clear() {
+        for (int i = 0; i < lanes.length; i++) {
+            ArrayDeque<Pending> lane = lanes[i];
+            laneBytes[i] = 0;
+            Pending p;
+            while ((p = lane.poll()) != null) {
+                ReferenceCountUtil.release(p.message);
+                p.promise.tryFailure(new PushException("Use a closed pushSocked!"));
+            }
+        }
+    }
+
+    static int sizeOf(Object message) {
+        if (message instanceof MessageLite) {
+            return ((MessageLite) message).getSerializedSize();
+        }
+        if (message instanceof MessageLite.Builder) {
+            return ((MessageLite.Builder) message).buildPartial().getSerializedSize();
+        }
+        if (message instanceof ByteBuf) {
+            return ((ByteBuf) message).readableBytes();
+        }
+        if (message instanceof ByteBufHolder) {
+            return ((ByteBufHolder) message).content().readableBytes();
+        }
+        return 0;
+    }
+
+    private static final class Pending {
+
+        private final Object message;
+        private final ChannelPromise promise;
+        private final int size;
+
+        Pending(Object message, ChannelPromise promise, int size) {
+            this.message = message;
+            this.promise = promise;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp;
+
+import com.google.protobuf.MessageLite;
+import com.linkedkeeper.tcp.connector.BroadcastResult;
+import com.linkedkeeper.tcp.connector.Connection;
+import com.linkedkeeper.tcp.connector.Session;
+import com.linkedkeeper.tcp.connector.tcp.codec.BroadcastFrames;
+import com.linkedkeeper.tcp.connector.tcp.codec.EncodedFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Write one message to many sessions.
+ * <p>
+ * The message is encoded once, the target channels are grouped by their event loop and each event loop
+ * gets a single task that writes the shared frame to all of its connections, then flushes them. Each frame
+ * goes through the backpressure policy or the priority lanes of its connection, so slow consumers do not
+ * grow the outbound buffer.
+ */
+final class TcpBroadcaster {
+
+    private final static Logger logger = LoggerFactory.getLogger(TcpBroadcaster.class);
+
+    private TcpBroadcaster() {
+    }
+
+    static BroadcastResult broadcast(Iterable<Session> sessions, int missed, MessageLite message) {
+        Map<EventLoop, BroadcastTask> tasks = new IdentityHashMap<EventLoop, BroadcastTask>();
+        BroadcastFrames frames = null;
+        int targets = 0;
+        boolean built = false;
+        try {
+            for (Session session : sessions) {
+                Connection connection = session.getConnection();
+                if (!session.isValid() || !(connection instanceof TcpConnection)) {
+                    missed++;
+                    continue;
+                }
+                TcpConnection tcpConnection = (TcpConnection) connection;
+                Channel channel = tcpConnection.getChannel();
+                if (!channel.isActive()) {
+                    missed++;
+                    continue;
+                }
+                if (frames == null) {
+                    frames = new BroadcastFrames(message, channel.alloc());
+                }
+                BroadcastTask task = tasks.get(channel.eventLoop());
+                if (task == null) {
+                    task = new BroadcastTask();
+                    tasks.put(channel.eventLoop(), task);
+                }
+                task.add(tcpConnection, frames.retainedFrame(channel));
+                targets++;
+            }
+            built = true;
+        } finally {
+            // the tasks hold their own duplicates
+            if (frames != null) {
+                frames.release();
+            }
+            if (!built) {
+                for (BroadcastTask task : tasks.values()) {
+                    task.release();
+                }
+            }
+        }
+
+        BroadcastResult result = new BroadcastResult(targets, missed);
+        ResultListener listener = new ResultListener(result);
+        for (Map.Entry<EventLoop, BroadcastTask> entry : tasks.entrySet()) {
+            BroadcastTask task = entry.getValue();
+            task.listener = listener;
+            try {
+                entry.getKey().execute(task);
+            } catch (RejectedExecutionException e) {
+                logger.warn("broadcast rejected by event loop " + entry.getKey(), e);
+                task.reject();
+            }
+        }
+        logger.debug("broadcast to " + targets + " sessions on " + tasks.size() + " event loops, missed " + missed);
+        return result;
+    }
+
+    private static final class BroadcastTask implements Runnable {
+
+        private final List<TcpConnection> connections = new ArrayList<TcpConnection>();
+        private final List<ByteBuf> frames = new ArrayList<ByteBuf>();
+        private ResultListener listener;
+
+        void add(TcpConnection connection, ByteBuf frame) {
+            connections.add(connection);
+            frames.add(frame);
+        }
+
+        public void run() {
+            for (int i = 0; i < connections.size(); i++) {
+                connections.get(i).writeFrame(new EncodedFrame(frames.get(i))).addListener(listener);
+            }
+            for (TcpConnection connection : connections) {
+                connection.getChannel().flush();
+            }
+        }
+
+        void release() {
+            for (ByteBuf frame : frames) {
+                frame.release();
+            }
+            frames.clear();
+            connections.clear();
+        }
+
+        void reject() {
+            for (ByteBuf frame : frames) {
+                frame.release();
+                listener.result.failure();
+            }
+        }
+    }
+
+    private static final class ResultListener implements ChannelFutureListener {
+
+        private final BroadcastResult result;
+
+        ResultListener(BroadcastResult result) {
+            this.result = result;
+        }
+
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.isSuccess()) {
+                result.success();
+            } else {
+                result.failure();
+            }
+        }
+    }
+}
@@ -30,29 +30,115 @@
 
 package com.linkedkeeper.tcp.connector.tcp;
 
+import com.google.protobuf.MessageLite;
+import com.linkedkeeper.tcp.connector.Session;
 import com.linkedkeeper.tcp.connector.api.ExchangeConnection;
+import com.linkedkeeper.tcp.connector.tcp.codec.EncodedFrame;
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
+import com.linkedkeeper.tcp.connector.tcp.config.BackpressureMetrics;
+import com.linkedkeeper.tcp.connector.tcp.config.BackpressurePolicy;
+import com.linkedkeeper.tcp.connector.tcp.config.TcpConnectionConfig;
 import com.linkedkeeper.tcp.exception.LostConnectException;
+import com.linkedkeeper.tcp.exception.BackpressureException;
 import com.linkedkeeper.tcp.exception.PushException;
+import com.linkedkeeper.tcp.message.Priority;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 public class TcpConnection<T> extends ExchangeConnection<T> {
 
     private final static Logger logger = LoggerFactory.getLogger(TcpConnection.class);
 
+    private static final AtomicIntegerFieldUpdater<TcpConnection> PENDING_FLUSHES_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(TcpConnection.class, "pendingFlushes");
+    private static final AtomicIntegerFieldUpdater<TcpConnection> FLUSH_SCHEDULED_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(TcpConnection.class, "flushScheduled");
+    private static final AtomicIntegerFieldUpdater<TcpConnection> QUEUED_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(TcpConnection.class, "queued");
+
+    /**
+     * Only logs, the failure reaches the caller through the returned future. Exceptions thrown by a
+     * listener are swallowed by netty.
+     */
+    private static final ChannelFutureListener WRITE_LISTENER = new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture future) {
+            if (future.isSuccess()) {
+                logger.debug("send success.");
+            } else if (future.cause() instanceof BackpressureException) {
+                logger.debug("send dropped, channel -> " + future.channel() + ", " + future.cause().getMessage());
+            } else {
+                logger.warn("send failed, channel -> " + future.channel(), future.cause());
+            }
+        }
+    };
+
     private ChannelHandlerContext cxt;
 
+    private final TcpConnectionConfig config;
+
+    /**
+     * messages written but not flushed yet, only used by flush consolidation
+     */
+    private volatile int pendingFlushes = 0;
+    private volatile int flushScheduled = 0;
+    private final Runnable flushTask;
+
+    private final BackpressurePolicy policy;
+    private final BackpressureMetrics metrics;
+    /**
+     * messages queued while unwritable, or on their way to the queue, written directly only when 0
+     */
+    private volatile int queued = 0;
+    /**
+     * queue of DROP_OLDEST and COALESCE in write order, keyed by cmd for COALESCE, only used by the event loop
+     */
+    private final LinkedHashMap<Object, Pending> pendings = new LinkedHashMap<Object, Pending>();
+    private int queuedBytes = 0;
+    private long unwritableSince = 0;
+    private ScheduledFuture<?> disconnectFuture;
+    /**
+     * priority lanes, null if disabled
+     */
+    private final OutboundScheduler scheduler;
+
     public TcpConnection(ChannelHandlerContext cxt) {
+        this(cxt, new TcpConnectionConfig());
+    }
+
+    public TcpConnection(ChannelHandlerContext cxt, TcpConnectionConfig config) {
         this.cxt = cxt;
+        this.config = config;
+        this.flushTask = config.isFlushConsolidation() ? new Runnable() {
+            public void run() {
+                flushScheduled = 0;
+                flush0();
+            }
+        } : null;
+        this.policy = config.getBackpressurePolicy();
+        this.metrics = config.getBackpressureMetrics();
+        this.scheduler = config.isPriorityLanes() ? new OutboundScheduler(cxt, config) : null;
     }
 
     public void connect() {
     }
 
+    public Channel getChannel() {
+        return cxt.channel();
+    }
+
     public void close() {
         this.close = true;
 
@@ -76,23 +162,47 @@ public class TcpConnection<T> extends ExchangeConnection<T> {
         pushMessage0(message);
     }
 
+    /**
+     * Send without throwing, the returned future reports the result of the write.
+     */
+    public ChannelFuture sendAsync(T message) {
+        return sendAsync(message, null);
+    }
+
+    /**
+     * @param priority lane of the message when priority lanes are enabled, chosen by cmd if null
+     */
+    public ChannelFuture sendAsync(T message, Priority priority) {
+        if (message == null) {
+            return cxt.newFailedFuture(new PushException("message cannot be null."));
+        }
+        if (isClosed()) {
+            return cxt.newFailedFuture(new PushException("Use a closed pushSocked!"));
+        }
+        try {
+            return write0(message, priority, true);
+        } catch (Throwable e) {
+            logger.error("TcpConnection sendAsync occur Throwable.", e);
+            return cxt.newFailedFuture(new PushException("Failed to send message, cause: " + e.getMessage(), e));
+        }
+    }
+
+    /**
+     * Write a broadcast frame under the backpressure policy of the connection, without flush when it is
+     * written directly, the broadcaster flushes once per channel. Called by the event loop.
+     */
+    @SuppressWarnings("unchecked")
+    ChannelFuture writeFrame(EncodedFrame frame) {
+        if (isClosed()) {
+            frame.release();
+            return cxt.newFailedFuture(new PushException("Use a closed pushSocked!"));
+        }
+        return write0((T) frame, null, false);
+    }
+
     private void pushMessage0(T message) {
         try {
-            ChannelFuture cf = cxt.writeAndFlush(message);
-            cf.addListener(new ChannelFutureListener() {
-                @Override
-                public void operationComplete(ChannelFuture future) throws PushException {
-                    if (future.isSuccess()) {
-                        logger.debug("send success.");
-                    } else {
-                        throw new PushException("Failed to send message.");
-                    }
-                    Throwable cause = future.cause();
-                    if (cause != null) {
-                        throw new PushException(cause);
-                    }
-                }
-            });
+            write0(message, null, true);
         } catch (LostConnectException e) {
             logger.error("TcpConnection pushMessage occur LostConnectException.", e);
             this.fireError(new PushException(e));
@@ -105,6 +215,218 @@ public class TcpConnection<T> extends ExchangeConnection<T> {
         }
     }
 
+    /**
+     * @param flush false leaves a direct write to the caller to flush
+     */
+    private ChannelFuture write0(T message, Priority priority, boolean flush) {
+        ChannelFuture cf;
+        if (scheduler != null) {
+            cf = scheduler.enqueue(message, priority);
+        } else if (policy == BackpressurePolicy.NONE || policy == BackpressurePolicy.DISCONNECT
+                || (queued == 0 && cxt.channel().isWritable())) {
+            cf = !flush ? cxt.write(message) : flushTask != null ? writeConsolidated(message) : cxt.writeAndFlush(message);
+        } else if (policy == BackpressurePolicy.DROP_NEW) {
+            metrics.dropped(OutboundScheduler.sizeOf(message));
+            ReferenceCountUtil.release(message);
+            cf = cxt.newFailedFuture(new BackpressureException("channel not writable, message dropped."));
+        } else {
+            cf = offer(message);
+        }
+        cf.addListener(WRITE_LISTENER);
+        return cf;
+    }
+
+    /**
+     * Queue the message on the event loop, builders are built here so the queue knows the size.
+     */
+    private ChannelFuture offer(T message) {
+        final Object msg = message instanceof MessageLite.Builder ? ((MessageLite.Builder) message).build() : message;
+        final ChannelPromise promise = cxt.newPromise();
+        QUEUED_UPDATER.incrementAndGet(this);
+        if (cxt.executor().inEventLoop()) {
+            offer0(msg, promise);
+        } else {
+            try {
+                cxt.executor().execute(new Runnable() {
+                    public void run() {
+                        offer0(msg, promise);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                QUEUED_UPDATER.decrementAndGet(this);
+                ReferenceCountUtil.release(msg);
+                promise.setFailure(e);
+            }
+        }
+        return promise;
+    }
+
+    private void offer0(Object msg, ChannelPromise promise) {
+        if (!cxt.channel().isActive()) {
+            QUEUED_UPDATER.decrementAndGet(this);
+            ReferenceCountUtil.release(msg);
+            promise.tryFailure(new PushException("Use a closed pushSocked!"));
+            return;
+        }
+        if (pendings.isEmpty() && cxt.channel().isWritable()) {
+            QUEUED_UPDATER.decrementAndGet(this);
+            cxt.writeAndFlush(msg, promise);
+            return;
+        }
+        Pending pending = new Pending(msg, promise, OutboundScheduler.sizeOf(msg));
+        Object key = policy == BackpressurePolicy.COALESCE && msg instanceof MessageBuf.JMTransferOrBuilder
+                ? Integer.valueOf(((MessageBuf.JMTransferOrBuilder) msg).getCmd()) : pending;
+        Pending old = pendings.remove(key);
+        if (old != null) {
+            drop(old, "message coalesced by a newer one.");
+        }
+        pendings.put(key, pending);
+        queuedBytes += pending.size;
+        // over the limits, drop the oldest ones
+        Iterator<Pending> it = pendings.values().iterator();
+        while (it.hasNext() && (pendings.size() > config.getMaxQueuedMessages() || queuedBytes > config.getMaxQueuedBytes())) {
+            Pending oldest = it.next();
+            it.remove();
+            drop(oldest, "channel not writable, message dropped.");
+        }
+    }
+
+    private void drop(Pending pending, String reason) {
+        queuedBytes -= pending.size;
+        QUEUED_UPDATER.decrementAndGet(this);
+        metrics.dropped(pending.size);
+        ReferenceCountUtil.release(pending.message);
+        pending.promise.tryFailure(new BackpressureException(reason));
+    }
+
+    /**
+     * Called by the event loop when the writability of the channel changes, writes the queued messages
+     * once writable, and watches how long the channel stays unwritable.
+     */
+    public void writabilityChanged() {
+        if (cxt.channel().isWritable()) {
+            if (unwritableSince != 0) {
+                unwritableSince = 0;
+                metrics.writable();
+                if (disconnectFuture != null) {
+                    disconnectFuture.cancel(false);
+                    disconnectFuture = null;
+                }
+            }
+            if (scheduler != null) {
+                scheduler.drain();
+            } else {
+                drain();
+            }
+        } else if (unwritableSince == 0) {
+            unwritableSince = System.currentTimeMillis();
+            metrics.unwritable();
+            long timeout = config.getUnwritableTimeout();
+            if (timeout > 0) {
+                disconnectFuture = cxt.executor().schedule(new Runnable() {
+                    public void run() {
+                        disconnect();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void drain() {
+        boolean written = false;
+        Iterator<Pending> it = pendings.values().iterator();
+        while (it.hasNext() && cxt.channel().isWritable()) {
+            Pending pending = it.next();
+            it.remove();
+            queuedBytes -= pending.size;
+            QUEUED_UPDATER.decrementAndGet(this);
+            cxt.write(pending.message, pending.promise);
+            written = true;
+        }
+        if (written) {
+            cxt.flush();
+        }
+    }
+
+    private void disconnect() {
+        disconnectFuture = null;
+        if (cxt.channel().isWritable() || !cxt.channel().isActive()) {
+            return;
+        }
+        metrics.disconnected();
+        logger.warn("the connection " + connectionId + " is unwritable for " + (System.currentTimeMillis() - unwritableSince)
+                + "ms, close it! ctx -> " + cxt.toString());
+        Session session = this.session;
+        if (session != null) {
+            session.close();
+        } else {
+            close();
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel is closed, fails the queued messages.
+     */
+    public void channelClosed() {
+        if (unwritableSince != 0) {
+            unwritableSince = 0;
+            metrics.writable();
+        }
+        if (disconnectFuture != null) {
+            disconnectFuture.cancel(false);
+            disconnectFuture = null;
+        }
+        if (scheduler != null) {
+            scheduler.clear();
+        }
+        Iterator<Pending> it = pendings.values().iterator();
+        while (it.hasNext()) {
+            Pending pending = it.next();
+            it.remove();
+            queuedBytes -= pending.size;
+            QUEUED_UPDATER.decrementAndGet(this);
+            ReferenceCountUtil.release(pending.message);
+            pending.promise.tryFailure(new PushException("Use a closed pushSocked!"));
+        }
+    }
+
+    private static final class Pending {
+
+        private final Object message;
+        private final ChannelPromise promise;
+        private final int size;
+
+        Pending(Object message, ChannelPromise promise, int size) {
+            this.message = message;
+            this.promise = promise;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Write without flush, the flush is shared by all the messages written in the same event loop tick
+     * (or within flushDelayMicros), or done at once when maxPendingFlushes messages are waiting.
+     */
+    private ChannelFuture writeConsolidated(T message) {
+        ChannelFuture cf = cxt.write(message);
+        if (PENDING_FLUSHES_UPDATER.incrementAndGet(this) >= config.getMaxPendingFlushes()) {
+            flush0();
+        } else if (FLUSH_SCHEDULED_UPDATER.compareAndSet(this, 0, 1)) {
+            long delay = config.getFlushDelayMicros();
+            if (delay > 0) {
+                cxt.executor().schedule(flushTask, delay, TimeUnit.MICROSECONDS);
+            } else {
+                cxt.executor().execute(flushTask);
+            }
+        }
+        return cf;
+    }
+
+    private void flush0() {
+        pendingFlushes = 0;
+        cxt.flush();
+    }
+
     private void pushMessage(T message) {
         boolean success = true;
         boolean sent = true;
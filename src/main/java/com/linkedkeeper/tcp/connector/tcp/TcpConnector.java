@@ -31,7 +31,11 @@
 package com.linkedkeeper.tcp.connector.tcp;
 
 import com.linkedkeeper.tcp.connector.Session;
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
+import com.linkedkeeper.tcp.connector.tcp.config.BackpressureMetrics;
+import com.linkedkeeper.tcp.connector.tcp.config.TcpConnectionConfig;
 import com.linkedkeeper.tcp.connector.tcp.listener.TcpHeartbeatListener;
+import com.linkedkeeper.tcp.constant.Constants;
 import com.linkedkeeper.tcp.message.MessageWrapper;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
@@ -43,12 +47,16 @@ public class TcpConnector extends ExchangeTcpConnector {
 
     private TcpHeartbeatListener tcpHeartbeatListener = null;
 
+    private TcpConnectionConfig connectionConfig = new TcpConnectionConfig();
+    /**
+     * precision of the session expiry in milliseconds
+     */
+    private long expireTickDuration = 100;
+
     public void init() {
-        tcpHeartbeatListener = new TcpHeartbeatListener(tcpSessionManager);
+        tcpSessionManager.setConnectionConfig(connectionConfig);
 
-        Thread heartbeatThread = new Thread(tcpHeartbeatListener, "tcpHeartbeatListener");
-        heartbeatThread.setDaemon(true);
-        heartbeatThread.start();
+        tcpHeartbeatListener = new TcpHeartbeatListener(tcpSessionManager, expireTickDuration);
     }
 
     public void destroy() {
@@ -65,9 +73,11 @@ public class TcpConnector extends ExchangeTcpConnector {
         try {
             Session session = tcpSessionManager.createSession(wrapper.getSessionId(), ctx);
             session.addSessionListener(tcpHeartbeatListener);
+            setHeaderAttributes(session, ctx.channel().attr(Constants.SERVER_HEADER).get());
             session.connect();
 
             tcpSessionManager.addSession(session);
+            ctx.channel().attr(Constants.SERVER_SESSION).set(session);
             /** send **/
             session.getConnection().send(wrapper.getBody());
         } catch (Exception e) {
@@ -75,6 +85,24 @@ public class TcpConnector extends ExchangeTcpConnector {
         }
     }
 
+    /**
+     * Indexed attributes of the session, from the header of CONNECT.
+     */
+    private void setHeaderAttributes(Session session, MessageBuf.JMTransfer header) {
+        if (header == null) {
+            return;
+        }
+        if (header.hasAppKey()) {
+            session.setAttribute(Constants.SESSION_APP_KEY, header.getAppKey());
+        }
+        if (header.hasPlatform()) {
+            session.setAttribute(Constants.SESSION_PLATFORM, header.getPlatform());
+        }
+        if (header.hasDeviceId()) {
+            session.setAttribute(Constants.SESSION_DEVICE_ID, header.getDeviceId());
+        }
+    }
+
     @Override
     public void close(MessageWrapper wrapper) {
         Session session = tcpSessionManager.getSession(wrapper.getSessionId());
@@ -93,6 +121,21 @@ public class TcpConnector extends ExchangeTcpConnector {
         }
     }
 
+    @Override
+    public void heartbeatClient(ChannelHandlerContext ctx, MessageWrapper wrapper) {
+        Session session = ctx.channel().attr(Constants.SERVER_SESSION).get();
+        if (session == null) {
+            heartbeatClient(wrapper);
+            return;
+        }
+        try {
+            session.access();
+            session.getConnection().send(wrapper.getBody());
+        } catch (Exception e) {
+            logger.error("TcpConnector heartbeatClient occur Exception.", e);
+        }
+    }
+
     @Override
     public void responseSendMessage(MessageWrapper wrapper) {
         try {
@@ -106,10 +149,24 @@ public class TcpConnector extends ExchangeTcpConnector {
     @Override
     public void responseNoKeepAliveMessage(ChannelHandlerContext ctx, MessageWrapper wrapper) {
         try {
-            NoKeepAliveTcpConnection connection = new NoKeepAliveTcpConnection(ctx);
-            connection.send(wrapper.getBody());
+            NoKeepAliveTcpConnection.send(ctx, wrapper.getBody());
         } catch (Exception e) {
             logger.error("TcpConnector responseNoKeepAliveMessage occur Exception.", e);
         }
     }
+
+    /**
+     * @return unwritable sessions and dropped messages of all the connections
+     */
+    public BackpressureMetrics getBackpressureMetrics() {
+        return connectionConfig.getBackpressureMetrics();
+    }
+
+    public void setConnectionConfig(TcpConnectionConfig connectionConfig) {
+        this.connectionConfig = connectionConfig;
+    }
+
+    public void setExpireTickDuration(long expireTickDuration) {
+        this.expireTickDuration = expireTickDuration;
+    }
 }
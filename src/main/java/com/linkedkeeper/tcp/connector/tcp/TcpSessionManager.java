@@ -34,6 +34,7 @@ import com.linkedkeeper.tcp.connector.Connection;
 import com.linkedkeeper.tcp.connector.Session;
 import com.linkedkeeper.tcp.connector.api.ExchangeSession;
 import com.linkedkeeper.tcp.connector.api.listener.SessionListener;
+import com.linkedkeeper.tcp.connector.tcp.config.TcpConnectionConfig;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,24 +43,17 @@ public class TcpSessionManager extends ExchangeTcpSessionManager {
 
     private final static Logger logger = LoggerFactory.getLogger(TcpSessionManager.class);
 
+    private TcpConnectionConfig connectionConfig = new TcpConnectionConfig();
+
+    /**
+     * Create a new session, an existing session with the same id is closed when
+     * the new one is added to the manager.
+     */
     @Override
-    public synchronized Session createSession(String sessionId, ChannelHandlerContext ctx) {
-        Session session = sessions.get(sessionId);
-        if (session != null) {
-            logger.info("session " + sessionId + " exist!");
-            /**
-             * 如果在已经建立Connection(1)的Channel上，再建立Connection(2)
-             * session.close会将ctx关闭， Connection(2)和Connection(1)的Channel都将会关闭
-             * 断线之后再建立连接Connection(3)，由于Session是有一点延迟
-             * Connection(3)和Connection(1/2)的Channel不是同一个
-             * **/
-            // 如果session已经存在则销毁session
-            session.close();
-            logger.info("session " + sessionId + " have been closed!");
-        }
+    public Session createSession(String sessionId, ChannelHandlerContext ctx) {
         logger.info("create new session " + sessionId + ", ctx -> " + ctx.toString());
 
-        session = new ExchangeSession();
+        Session session = new ExchangeSession();
         session.setSessionId(sessionId);
         session.setValid(true);
         session.setMaxInactiveInterval(this.getMaxInactiveInterval());
@@ -78,10 +72,13 @@ public class TcpSessionManager extends ExchangeTcpSessionManager {
     }
 
     protected Connection createTcpConnection(Session session, ChannelHandlerContext ctx) {
-        Connection conn = new TcpConnection(ctx);
+        Connection conn = new TcpConnection(ctx, connectionConfig);
         conn.setConnectionId(session.getSessionId());
         conn.setSession(session);
         return conn;
     }
 
+    public void setConnectionConfig(TcpConnectionConfig connectionConfig) {
+        this.connectionConfig = connectionConfig;
+    }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.codec;
+
+import com.google.protobuf.ByteString;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.compression.Snappy;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of JMTransfer.body, negotiated by the flag of CONNECT.
+ * <p>
+ * The client advertises the codecs it supports by their bit in the flag of CONNECT. A compressed body is
+ * marked by {@link #FLAG_COMPRESSED} together with the bit of its codec.
+ */
+public enum BodyCompression {
+
+    DEFLATE(0x10) {
+        @Override
+        ByteString compress(ByteBufAllocator alloc, ByteString body) {
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(body.toByteArray());
+            deflater.finish();
+            ByteString.Output out = ByteString.newOutput(body.size() / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteString();
+        }
+
+        @Override
+        ByteString decompress(ByteBufAllocator alloc, ByteString body, int maxSize) {
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(body.toByteArray());
+            ByteString.Output out = ByteString.newOutput(body.size() * 4);
+            byte[] buffer = new byte[4096];
+            try {
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new CorruptedFrameException("truncated deflate body.");
+                    }
+                    if (out.size() + n > maxSize) {
+                        throw new CorruptedFrameException("decompressed body exceeds " + maxSize + " bytes.");
+                    }
+                    out.write(buffer, 0, n);
+                }
+            } catch (DataFormatException e) {
+                throw new CorruptedFrameException(e);
+            }
+            return out.toByteString();
+        }
+    },
+
+    /**
+     * Snappy block format, LZ77 family, implemented in pure java by netty.
+     */
+    SNAPPY(0x20) {
+        @Override
+        ByteString compress(ByteBufAllocator alloc, ByteString body) {
+            ByteBuf in = alloc.buffer(body.size());
+            ByteBuf out = alloc.buffer(body.size() / 2 + 16);
+            try {
+                in.writeBytes(body.asReadOnlyByteBuffer());
+                new Snappy().encode(in, out, in.readableBytes());
+                return ByteString.copyFrom(out.nioBuffer());
+            } finally {
+                in.release();
+                out.release();
+            }
+        }
+
+        @Override
+        ByteString decompress(ByteBufAllocator alloc, ByteString body, int maxSize) {
+            ByteBuf in = alloc.buffer(body.size());
+            ByteBuf out = null;
+            try {
+                in.writeBytes(body.asReadOnlyByteBuffer());
+                // the preamble is the uncompressed length
+                int length = (int) CompactTransfer.readRawVarint(in.duplicate());
+                if (length < 0 || length > maxSize) {
+                    throw new CorruptedFrameException("decompressed body exceeds " + maxSize + " bytes.");
+                }
+                out = alloc.buffer(length, length);
+                new Snappy().decode(in, out);
+                if (out.readableBytes() != length) {
+                    throw new CorruptedFrameException("truncated snappy body.");
+                }
+                return ByteString.copyFrom(out.nioBuffer());
+            } finally {
+                in.release();
+                if (out != null) {
+                    out.release();
+                }
+            }
+        }
+    };
+
+    public static final int FLAG_COMPRESSED = 0x40;
+
+    private static final int FLAG_MASK = FLAG_COMPRESSED | 0x10 | 0x20;
+
+    private static final FastThreadLocal<Deflater> DEFLATERS = new FastThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, false);
+        }
+    };
+
+    private static final FastThreadLocal<Inflater> INFLATERS = new FastThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(false);
+        }
+    };
+
+    private final int bit;
+
+    BodyCompression(int bit) {
+        this.bit = bit;
+    }
+
+    public int getBit() {
+        return bit;
+    }
+
+    abstract ByteString compress(ByteBufAllocator alloc, ByteString body);
+
+    abstract ByteString decompress(ByteBufAllocator alloc, ByteString body, int maxSize);
+
+    /**
+     * @return the message with its body compressed, or the message itself if the body is below the threshold
+     * or does not get smaller
+     */
+    MessageBuf.JMTransferOrBuilder compress(ByteBufAllocator alloc, MessageBuf.JMTransferOrBuilder message, int threshold) {
+        if (!message.hasBody() || message.getBody().size() < threshold) {
+            return message;
+        }
+        ByteString body = message.getBody();
+        ByteString compressed = compress(alloc, body);
+        if (compressed.size() >= body.size()) {
+            return message;
+        }
+        // the builder may be shared by other writes, never change it in place
+        MessageBuf.JMTransfer.Builder builder = message instanceof MessageBuf.JMTransfer.Builder
+                ? ((MessageBuf.JMTransfer.Builder) message).clone()
+                : ((MessageBuf.JMTransfer) message).toBuilder();
+        return builder.setFlag(clearFlag(message.getFlag()) | FLAG_COMPRESSED | bit)
+                .setBody(compressed)
+                .build();
+    }
+
+    /**
+     * @param preferred codecs of the server, in order of preference
+     * @param flag      flag of the CONNECT message
+     * @return the first preferred codec advertised by the client, null if none
+     */
+    public static BodyCompression negotiate(List<BodyCompression> preferred, int flag) {
+        if (preferred == null || (flag & FLAG_COMPRESSED) != 0) {
+            return null;
+        }
+        for (BodyCompression compression : preferred) {
+            if ((flag & compression.bit) != 0) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the codec of a compressed body, null if the body is not compressed
+     */
+    public static BodyCompression of(int flag) {
+        if ((flag & FLAG_COMPRESSED) == 0) {
+            return null;
+        }
+        for (BodyCompression compression : values()) {
+            if ((flag & compression.bit) != 0) {
+                return compression;
+            }
+        }
+        throw new CorruptedFrameException("unknown compression of flag " + flag);
+    }
+
+    static int clearFlag(int flag) {
+        return flag & ~FLAG_MASK;
+    }
+}
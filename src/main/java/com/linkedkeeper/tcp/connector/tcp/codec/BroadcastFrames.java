@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.codec;
+
+import com.google.protobuf.MessageLite;
+import com.linkedkeeper.tcp.constant.Constants;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+
+/**
+ * Frames of one broadcast message, encoded once with their length prefix and shared by all the target
+ * channels.
+ * <p>
+ * A channel may use compact frames or a compressed body, each variant is encoded the first time a channel
+ * needs it. Not thread-safe, used by the broadcasting thread only, the frames are then written as retained
+ * duplicates.
+ */
+public class BroadcastFrames {
+
+    private final MessageLite message;
+    private final ByteBufAllocator alloc;
+    // [compact][compression], compression 0 is none
+    private final ByteBuf[] frames = new ByteBuf[2 * (BodyCompression.values().length + 1)];
+
+    public BroadcastFrames(MessageLite message, ByteBufAllocator alloc) {
+        this.message = message;
+        this.alloc = alloc;
+    }
+
+    /**
+     * @return a retained duplicate of the frame for the channel, to be written before the frame encoder
+     */
+    public ByteBuf retainedFrame(Channel channel) {
+        boolean compact = channel.attr(Constants.SERVER_COMPACT).get() != null
+                && message instanceof MessageBuf.JMTransferOrBuilder;
+        BodyCompression compression = message instanceof MessageBuf.JMTransferOrBuilder
+                ? channel.attr(Constants.SERVER_COMPRESSION).get() : null;
+        int index = (compression == null ? 0 : compression.ordinal() + 1) * 2 + (compact ? 1 : 0);
+        ByteBuf frame = frames[index];
+        if (frame == null) {
+            frame = frames[index] = encode(channel, compact, compression);
+        }
+        return frame.retainedDuplicate();
+    }
+
+    private ByteBuf encode(Channel channel, boolean compact, BodyCompression compression) {
+        MessageLite encoded = message;
+        if (compression != null) {
+            CompressionHandler handler = channel.pipeline().get(CompressionHandler.class);
+            if (handler != null) {
+                encoded = (MessageLite) compression.compress(alloc, (MessageBuf.JMTransferOrBuilder) message, handler.getThreshold());
+            }
+        }
+        ByteBuf payload = compact
+                ? CompactTransfer.encode(alloc, (MessageBuf.JMTransferOrBuilder) encoded)
+                : alloc.buffer().writeBytes(encoded.toByteArray());
+        try {
+            int length = payload.readableBytes();
+            ByteBuf frame = alloc.buffer(5 + length);
+            CompactTransfer.writeRawVarint(frame, length);
+            frame.writeBytes(payload);
+            return frame;
+        } finally {
+            payload.release();
+        }
+    }
+
+    public void release() {
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] != null) {
+                frames[i].release();
+                frames[i] = null;
+            }
+        }
+    }
+}
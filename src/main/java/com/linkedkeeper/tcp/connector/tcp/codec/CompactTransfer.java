@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.codec;
+
+import com.google.protobuf.ByteString;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Compact envelope of JMTransfer for an established session.
+ * <pre>
+ * +-------+--------------+--------------+-----------------+---------------+-----------+------+------+
+ * | magic | cmd (varint) | seq (varint) | format (varint) | flag (varint) | timeStamp | sign | body |
+ * +-------+--------------+--------------+-----------------+---------------+-----------+------+------+
+ * </pre>
+ * timeStamp and sign are prefixed by their varint length, they belong to each message. The session-level
+ * fields (version, deviceId, platform, token, ...) are only sent by the CONNECT message, the server caches
+ * them and rebuilds the full JMTransfer. A full JMTransfer frame always starts with the
+ * tag of field 1 (0x0A), so both formats are told apart by the first byte.
+ */
+public final class CompactTransfer {
+
+    public static final byte MAGIC = (byte) 0xC5;
+
+    private CompactTransfer() {
+    }
+
+    public static boolean isCompact(ByteBuf frame) {
+        return frame.isReadable() && frame.getByte(frame.readerIndex()) == MAGIC;
+    }
+
+    /**
+     * Rebuild the full message of a compact frame from the cached CONNECT header.
+     */
+    public static MessageBuf.JMTransfer decode(ByteBuf frame, MessageBuf.JMTransfer header) {
+        frame.skipBytes(1);
+        int cmd = (int) readRawVarint(frame);
+        long seq = readRawVarint(frame);
+        int format = (int) readRawVarint(frame);
+        int flag = (int) readRawVarint(frame);
+        ByteString timeStamp = readBytes(frame);
+        ByteString sign = readBytes(frame);
+        ByteString body = ByteString.copyFrom(frame.nioBuffer());
+        frame.skipBytes(frame.readableBytes());
+        return header.toBuilder()
+                .setCmd(cmd)
+                .setSeq(seq)
+                .setFormat(format)
+                .setFlag(flag)
+                .setTimeStampBytes(timeStamp)
+                .setSignBytes(sign)
+                .setBody(body)
+                .build();
+    }
+
+    /**
+     * Read cmd, seq and format of a compact frame, the reader index of the buffer is kept.
+     */
+    public static JMTransferHeader peekHeader(ByteBuf frame) {
+        int readerIndex = frame.readerIndex();
+        try {
+            frame.skipBytes(1);
+            int cmd = (int) readRawVarint(frame);
+            long seq = readRawVarint(frame);
+            int format = (int) readRawVarint(frame);
+            return new JMTransferHeader(cmd, seq, format);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        } catch (CorruptedFrameException e) {
+            return null;
+        } finally {
+            frame.readerIndex(readerIndex);
+        }
+    }
+
+    public static ByteBuf encode(ByteBufAllocator alloc, MessageBuf.JMTransferOrBuilder message) {
+        ByteString body = message.hasBody() ? message.getBody() : ByteString.EMPTY;
+        ByteString timeStamp = message.getTimeStampBytes();
+        ByteString sign = message.getSignBytes();
+        ByteBuf out = alloc.buffer(1 + 5 + 10 + 5 + 5 + 5 + timeStamp.size() + 5 + sign.size() + body.size());
+        out.writeByte(MAGIC);
+        writeRawVarint(out, message.getCmd() & 0xFFFFFFFFL);
+        writeRawVarint(out, message.getSeq());
+        writeRawVarint(out, message.getFormat() & 0xFFFFFFFFL);
+        writeRawVarint(out, message.getFlag() & 0xFFFFFFFFL);
+        writeRawVarint(out, timeStamp.size());
+        out.writeBytes(timeStamp.asReadOnlyByteBuffer());
+        writeRawVarint(out, sign.size());
+        out.writeBytes(sign.asReadOnlyByteBuffer());
+        out.writeBytes(body.asReadOnlyByteBuffer());
+        return out;
+    }
+
+    private static ByteString readBytes(ByteBuf in) {
+        long length = readRawVarint(in);
+        if (length > in.readableBytes()) {
+            throw new CorruptedFrameException("field length " + length + " exceeds the frame.");
+        }
+        if (length == 0) {
+            return ByteString.EMPTY;
+        }
+        ByteString bytes = ByteString.copyFrom(in.nioBuffer(in.readerIndex(), (int) length));
+        in.skipBytes((int) length);
+        return bytes;
+    }
+
+    static long readRawVarint(ByteBuf in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new CorruptedFrameException("malformed varint.");
+    }
+
+    static void writeRawVarint(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
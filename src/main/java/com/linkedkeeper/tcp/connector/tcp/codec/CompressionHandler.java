@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.codec;
+
+import com.linkedkeeper.tcp.connector.tcp.config.ServerTransportConfig;
+import com.linkedkeeper.tcp.constant.Constants;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Compress and decompress JMTransfer.body between the protobuf codec and the server handler.
+ * <p>
+ * Inbound bodies are decompressed by the codec marked in their flag. Outbound bodies are compressed by the
+ * codec negotiated at CONNECT, only when they reach the threshold, smaller messages such as heartbeats and
+ * replies are written as they are.
+ */
+@ChannelHandler.Sharable
+public class CompressionHandler extends ChannelDuplexHandler {
+
+    private final int threshold;
+    private final int maxDecompressedSize;
+
+    public CompressionHandler(ServerTransportConfig config) {
+        this.threshold = config.getCompressThreshold();
+        this.maxDecompressedSize = config.getMaxDecompressedSize();
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof MessageBuf.JMTransfer) {
+            MessageBuf.JMTransfer message = (MessageBuf.JMTransfer) msg;
+            BodyCompression compression = BodyCompression.of(message.getFlag());
+            if (compression != null) {
+                msg = message.toBuilder()
+                        .setFlag(BodyCompression.clearFlag(message.getFlag()))
+                        .setBody(compression.decompress(ctx.alloc(), message.getBody(), maxDecompressedSize))
+                        .build();
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof MessageBuf.JMTransferOrBuilder) {
+            BodyCompression compression = ctx.channel().attr(Constants.SERVER_COMPRESSION).get();
+            if (compression != null) {
+                msg = compression.compress(ctx.alloc(), (MessageBuf.JMTransferOrBuilder) msg, threshold);
+            }
+        }
+        ctx.write(msg, promise);
+    }
+}
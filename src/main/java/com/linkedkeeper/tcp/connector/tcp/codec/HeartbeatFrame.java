@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.tcp.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * The heartbeat reply encoded once for each wire format, around its seq.
+ * <p>
+ * Both formats write seq right after cmd, so a frame is the cached bytes before seq, the varint seq of the
+ * heartbeat and the cached bytes after it, behind their length prefix. The body is never compressed, a
+ * heartbeat reply is below any compression threshold.
+ */
+public final class HeartbeatFrame {
+
+    // tag of field 4 (seq) as a varint
+    private static final int SEQ_TAG = 4 << 3;
+
+    private final byte[] fullHead;
+    private final byte[] fullTail;
+    private final byte[] compactHead;
+    private final byte[] compactTail;
+
+    public HeartbeatFrame(MessageBuf.JMTransfer reply) {
+        this.fullHead = MessageBuf.JMTransfer.newBuilder()
+                .setVersionBytes(reply.getVersionBytes())
+                .setDeviceIdBytes(reply.getDeviceIdBytes())
+                .setCmd(reply.getCmd())
+                .buildPartial()
+                .toByteArray();
+        this.fullTail = reply.toBuilder()
+                .clearVersion()
+                .clearDeviceId()
+                .clearCmd()
+                .clearSeq()
+                .buildPartial()
+                .toByteArray();
+        ByteBuf compact = CompactTransfer.encode(ByteBufAllocator.DEFAULT, reply.toBuilder().setSeq(0));
+        try {
+            // magic and cmd, then the single byte of seq 0
+            int headLength = 1 + varintSize(reply.getCmd() & 0xFFFFFFFFL);
+            this.compactHead = new byte[headLength];
+            compact.readBytes(compactHead);
+            compact.skipBytes(1);
+            this.compactTail = new byte[compact.readableBytes()];
+            compact.readBytes(compactTail);
+        } finally {
+            compact.release();
+        }
+    }
+
+    /**
+     * @return the reply of the heartbeat seq with its length prefix, to be written as an {@link EncodedFrame}
+     */
+    public ByteBuf encode(ByteBufAllocator alloc, boolean compact, long seq) {
+        byte[] head = compact ? compactHead : fullHead;
+        byte[] tail = compact ? compactTail : fullTail;
+        int length = head.length + (compact ? 0 : 1) + varintSize(seq) + tail.length;
+        ByteBuf frame = alloc.buffer(varintSize(length) + length);
+        CompactTransfer.writeRawVarint(frame, length);
+        frame.writeBytes(head);
+        if (!compact) {
+            frame.writeByte(SEQ_TAG);
+        }
+        CompactTransfer.writeRawVarint(frame, seq);
+        frame.writeBytes(tail);
+        return frame;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.codec;
+
+import com.linkedkeeper.tcp.connector.tcp.config.ServerTransportConfig;
+import com.linkedkeeper.tcp.constant.Constants;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.MessageToMessageDecoder;
+
+import java.util.List;
+
+/**
+ * Decode a JMTransfer frame straight from the ByteBuf.
+ * <p>
+ * cmd, seq and format are read from the buffer first. Replies and heartbeats of a connected channel are
+ * emitted as a {@link JMTransferHeader}, without building the message, its strings and its body. Other
+ * frames are parsed from the buffer's backing array when it has one, the string fields of the message
+ * are kept as bytes and only decoded when they are accessed.
+ * <p>
+ * Both full frames and {@link CompactTransfer} frames are accepted on the same channel.
+ */
+@ChannelHandler.Sharable
+public class JMTransferDecoder extends MessageToMessageDecoder<ByteBuf> {
+
+    private static final int FIELD_CMD = 3;
+    private static final int FIELD_SEQ = 4;
+    private static final int FIELD_FORMAT = 5;
+
+    private static final int SEND = 1;
+    private static final int REPLY = 4;
+
+    private final int heartbeatCmd;
+    private final boolean heartbeatFastPath;
+
+    public JMTransferDecoder(ServerTransportConfig config) {
+        this.heartbeatCmd = config.getHeartbeatCmd();
+        this.heartbeatFastPath = config.getHeartbeatMessage() != null;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+        boolean compact = CompactTransfer.isCompact(msg);
+        JMTransferHeader header = compact ? CompactTransfer.peekHeader(msg) : peekHeader(msg);
+        if (header != null) {
+            if (header.getFormat() == REPLY) {
+                out.add(header);
+                return;
+            }
+            if (heartbeatFastPath && header.getFormat() == SEND && header.getCmd() == heartbeatCmd
+                    && ctx.channel().attr(Constants.SERVER_SESSION).get() != null) {
+                out.add(header);
+                return;
+            }
+        }
+        out.add(compact ? decodeCompact(ctx, msg) : parse(msg));
+    }
+
+    private MessageBuf.JMTransfer decodeCompact(ChannelHandlerContext ctx, ByteBuf msg) {
+        MessageBuf.JMTransfer header = ctx.channel().attr(Constants.SERVER_HEADER).get();
+        if (header == null) {
+            throw new CorruptedFrameException("compact frame before CONNECT.");
+        }
+        if (ctx.channel().attr(Constants.SERVER_COMPACT).get() == null) {
+            ctx.channel().attr(Constants.SERVER_COMPACT).set(Boolean.TRUE);
+        }
+        return CompactTransfer.decode(msg, header);
+    }
+
+    static MessageBuf.JMTransfer parse(ByteBuf msg) throws Exception {
+        int length = msg.readableBytes();
+        if (msg.hasArray()) {
+            return MessageBuf.JMTransfer.PARSER.parseFrom(msg.array(), msg.arrayOffset() + msg.readerIndex(), length);
+        }
+        byte[] array = new byte[length];
+        msg.getBytes(msg.readerIndex(), array, 0, length);
+        return MessageBuf.JMTransfer.PARSER.parseFrom(array, 0, length);
+    }
+
+    /**
+     * Read cmd, seq and format, the reader index of the buffer is kept.
+     *
+     * @return null if one of them is missing or the frame is malformed, the full parse reports the error
+     */
+    static JMTransferHeader peekHeader(ByteBuf msg) {
+        int readerIndex = msg.readerIndex();
+        try {
+            int cmd = 0;
+            long seq = 0;
+            int format = 0;
+            int found = 0;
+            while (found != 7 && msg.isReadable()) {
+                long tag = CompactTransfer.readRawVarint(msg);
+                int field = (int) (tag >>> 3);
+                int wireType = (int) (tag & 7);
+                if (wireType == 0) {
+                    long value = CompactTransfer.readRawVarint(msg);
+                    if (field == FIELD_CMD) {
+                        cmd = (int) value;
+                        found |= 1;
+                    } else if (field == FIELD_SEQ) {
+                        seq = value;
+                        found |= 2;
+                    } else if (field == FIELD_FORMAT) {
+                        format = (int) value;
+                        found |= 4;
+                    }
+                } else if (wireType == 1) {
+                    msg.skipBytes(8);
+                } else if (wireType == 2) {
+                    msg.skipBytes((int) CompactTransfer.readRawVarint(msg));
+                } else if (wireType == 5) {
+                    msg.skipBytes(4);
+                } else {
+                    return null;
+                }
+            }
+            return found == 7 ? new JMTransferHeader(cmd, seq, format) : null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (CorruptedFrameException e) {
+            return null;
+        } finally {
+            msg.readerIndex(readerIndex);
+        }
+    }
+}
@@ -31,23 +31,21 @@
 package com.linkedkeeper.tcp.connector.tcp.codec;
 
 import com.linkedkeeper.tcp.connector.tcp.config.ServerTransportConfig;
-import io.netty.handler.codec.protobuf.ProtobufDecoder;
-import io.netty.handler.codec.protobuf.ProtobufEncoder;
 
 public class ProtobufAdapter {
 
-    private ProtobufDecoder decoder = new ProtobufDecoder(MessageBuf.JMTransfer.getDefaultInstance());
-    private ProtobufEncoder encoder = new ProtobufEncoder();
+    private JMTransferDecoder decoder;
+    private JMTransferEncoder encoder = new JMTransferEncoder();
 
     public ProtobufAdapter(ServerTransportConfig config) {
-        // nothing to do
+        this.decoder = new JMTransferDecoder(config);
     }
 
-    public ProtobufDecoder getDecoder() {
+    public JMTransferDecoder getDecoder() {
         return decoder;
     }
 
-    public ProtobufEncoder getEncoder() {
+    public JMTransferEncoder getEncoder() {
         return encoder;
     }
 }
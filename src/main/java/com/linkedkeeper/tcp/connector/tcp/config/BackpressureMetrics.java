@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.config;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound backpressure gauges and counters of all the connections sharing a config.
+ */
+public class BackpressureMetrics {
+
+    private final AtomicInteger unwritableSessions = new AtomicInteger();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+
+    public void unwritable() {
+        unwritableSessions.incrementAndGet();
+    }
+
+    public void writable() {
+        unwritableSessions.decrementAndGet();
+    }
+
+    public void dropped(int bytes) {
+        droppedMessages.incrementAndGet();
+        droppedBytes.addAndGet(bytes);
+    }
+
+    public void disconnected() {
+        disconnects.incrementAndGet();
+    }
+
+    /**
+     * @return sessions whose channel is not writable now
+     */
+    public int getUnwritableSessions() {
+        return unwritableSessions.get();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * @return sessions closed for staying unwritable
+     */
+    public long getDisconnects() {
+        return disconnects.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BackpressureMetrics{unwritableSessions=" + unwritableSessions.get() + ", droppedMessages=" + droppedMessages.get()
+                + ", droppedBytes=" + droppedBytes.get() + ", disconnects=" + disconnects.get() + "}";
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.config;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handshake gauges and counters of all the channels of a server, a handshake lasts from accept to CONNECT.
+ */
+public class HandshakeMetrics {
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong completedNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+
+    public void started() {
+        pending.incrementAndGet();
+    }
+
+    public void completed(long nanos) {
+        pending.decrementAndGet();
+        completed.incrementAndGet();
+        completedNanos.addAndGet(nanos);
+    }
+
+    public void timeout() {
+        pending.decrementAndGet();
+        timeouts.incrementAndGet();
+    }
+
+    public void abandoned() {
+        pending.decrementAndGet();
+        abandoned.incrementAndGet();
+    }
+
+    /**
+     * @return channels accepted and without CONNECT yet
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return channels closed by the server for not sending CONNECT in time
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return channels closed by the client before CONNECT
+     */
+    public long getAbandoned() {
+        return abandoned.get();
+    }
+
+    public long getAverageHandshakeMillis() {
+        long count = completed.get();
+        return count == 0 ? 0 : completedNanos.get() / count / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return "HandshakeMetrics{pending=" + pending.get() + ", completed=" + completed.get() + ", timeouts=" + timeouts.get()
+                + ", abandoned=" + abandoned.get() + ", averageHandshakeMillis=" + getAverageHandshakeMillis() + "}";
+    }
+}
@@ -31,10 +31,19 @@
 package com.linkedkeeper.tcp.connector.tcp.config;
 
 import com.linkedkeeper.tcp.connector.tcp.TcpConnector;
+import com.linkedkeeper.tcp.connector.tcp.codec.BodyCompression;
+import com.linkedkeeper.tcp.connector.tcp.codec.HeartbeatFrame;
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
+import com.linkedkeeper.tcp.connector.tcp.server.AcceptGovernor;
+import com.linkedkeeper.tcp.connector.tcp.server.InboundRateLimiter;
 import com.linkedkeeper.tcp.invoke.ApiProxy;
+import com.linkedkeeper.tcp.invoke.AsyncApiProxy;
+import com.linkedkeeper.tcp.invoke.InvokeExecutor;
 import com.linkedkeeper.tcp.notify.NotifyProxy;
 import io.netty.handler.codec.protobuf.ProtobufDecoder;
 
+import java.util.List;
+
 public class ServerTransportConfig {
 
     // handler
@@ -43,7 +52,26 @@ public class ServerTransportConfig {
     private ProtobufDecoder decoder = null;
     // invoke
     private ApiProxy proxy = null;
+    private AsyncApiProxy asyncProxy = null;
     private NotifyProxy notify = null;
+    // business executor, invoke on I/O thread if null
+    private InvokeExecutor invokeExecutor = null;
+    // heartbeat fast path, answered by the reply encoded once per wire format without invoking the proxy
+    private int heartbeatCmd = -1;
+    private MessageBuf.JMTransfer.Builder heartbeatReply = null;
+    private MessageBuf.JMTransfer heartbeatMessage = null;
+    private HeartbeatFrame heartbeatFrame = null;
+    // body compression, codecs in order of preference, disabled if empty
+    private List<BodyCompression> compressions = null;
+    private int compressThreshold = 1024;
+    private int maxDecompressedSize = 4 * 1024 * 1024;
+    // inbound rate limits, disabled if null
+    private InboundRateLimiter rateLimiter = null;
+    // admission control of new connections, disabled if null
+    private AcceptGovernor acceptGovernor = null;
+    // channels without CONNECT within the deadline are closed, disabled if 0
+    private long handshakeTimeout = 30000;
+    private final HandshakeMetrics handshakeMetrics = new HandshakeMetrics();
 
     public ServerTransportConfig(TcpConnector tcpConnector, ApiProxy proxy, NotifyProxy notify) {
         this.tcpConnector = tcpConnector;
@@ -51,6 +79,12 @@ public class ServerTransportConfig {
         this.notify = notify;
     }
 
+    public ServerTransportConfig(TcpConnector tcpConnector, AsyncApiProxy asyncProxy, NotifyProxy notify) {
+        this.tcpConnector = tcpConnector;
+        this.asyncProxy = asyncProxy;
+        this.notify = notify;
+    }
+
     public TcpConnector getTcpConnector() {
         return tcpConnector;
     }
@@ -63,7 +97,116 @@ public class ServerTransportConfig {
         return proxy;
     }
 
+    public AsyncApiProxy getAsyncProxy() {
+        return asyncProxy;
+    }
+
     public NotifyProxy getNotify() {
         return notify;
     }
+
+    public InvokeExecutor getInvokeExecutor() {
+        return invokeExecutor;
+    }
+
+    public void setInvokeExecutor(InvokeExecutor invokeExecutor) {
+        this.invokeExecutor = invokeExecutor;
+    }
+
+    public int getHeartbeatCmd() {
+        return heartbeatCmd;
+    }
+
+    public void setHeartbeatCmd(int heartbeatCmd) {
+        this.heartbeatCmd = heartbeatCmd;
+    }
+
+    public MessageBuf.JMTransfer.Builder getHeartbeatReply() {
+        return heartbeatReply;
+    }
+
+    /**
+     * Reply of the heartbeat fast path, each heartbeat is answered with it and its own seq.
+     */
+    public void setHeartbeatReply(MessageBuf.JMTransfer.Builder heartbeatReply) {
+        this.heartbeatReply = heartbeatReply;
+        this.heartbeatMessage = heartbeatReply != null ? heartbeatReply.build() : null;
+        this.heartbeatFrame = heartbeatMessage != null ? new HeartbeatFrame(heartbeatMessage) : null;
+    }
+
+    /**
+     * @return the heartbeat reply built once, null if the fast path is disabled
+     */
+    public MessageBuf.JMTransfer getHeartbeatMessage() {
+        return heartbeatMessage;
+    }
+
+    /**
+     * @return the heartbeat reply encoded once per wire format, null if the fast path is disabled
+     */
+    public HeartbeatFrame getHeartbeatFrame() {
+        return heartbeatFrame;
+    }
+
+    public List<BodyCompression> getCompressions() {
+        return compressions;
+    }
+
+    public void setCompressions(List<BodyCompression> compressions) {
+        this.compressions = compressions;
+    }
+
+    public boolean isCompressEnabled() {
+        return compressions != null && !compressions.isEmpty();
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    /**
+     * bodies smaller than the threshold are never compressed
+     */
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    public int getMaxDecompressedSize() {
+        return maxDecompressedSize;
+    }
+
+    public void setMaxDecompressedSize(int maxDecompressedSize) {
+        this.maxDecompressedSize = maxDecompressedSize;
+    }
+
+    public InboundRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void setRateLimiter(InboundRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public AcceptGovernor getAcceptGovernor() {
+        return acceptGovernor;
+    }
+
+    public void setAcceptGovernor(AcceptGovernor acceptGovernor) {
+        this.acceptGovernor = acceptGovernor;
+    }
+
+    public long getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * @param handshakeTimeout milliseconds from accept to CONNECT, 0 disables the deadline
+     */
+    public void setHandshakeTimeout(long handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    public HandshakeMetrics getHandshakeMetrics() {
+        return handshakeMetrics;
+    }
 }
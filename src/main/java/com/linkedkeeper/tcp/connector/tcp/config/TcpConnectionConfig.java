@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.config;
+
+import com.linkedkeeper.tcp.message.Priority;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Outbound settings shared by all the connections of a connector.
+ */
+public class TcpConnectionConfig {
+
+    // flush consolidation
+    /**
+     * write without flush, and flush once for the messages written during the same event loop tick
+     */
+    private boolean flushConsolidation = false;
+    /**
+     * flush immediately once that many messages are waiting for the consolidated flush
+     */
+    private int maxPendingFlushes = 64;
+    /**
+     * delay of the consolidated flush in microseconds, 0 flushes at the end of the current event loop tick
+     */
+    private long flushDelayMicros = 0;
+
+    // backpressure
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.NONE;
+    /**
+     * limits of the messages queued while unwritable, used by DROP_OLDEST and COALESCE
+     */
+    private int maxQueuedMessages = 1024;
+    private int maxQueuedBytes = 1024 * 1024;
+    /**
+     * close the session after being unwritable for that many milliseconds, 0 never closes,
+     * except with DISCONNECT which then uses DEFAULT_DISCONNECT_TIMEOUT
+     */
+    private long unwritableTimeout = 0;
+
+    public static final long DEFAULT_DISCONNECT_TIMEOUT = 30000;
+
+    private final BackpressureMetrics backpressureMetrics = new BackpressureMetrics();
+
+    // priority lanes, they replace the backpressure queue when enabled, each lane applies the policy
+    private boolean priorityLanes = false;
+    /**
+     * limits of each lane, beyond them DROP_OLDEST and COALESCE drop the oldest messages of the lane,
+     * the other policies drop the new message
+     */
+    private int maxLaneMessages = 1024;
+    private int maxLaneBytes = 1024 * 1024;
+    /**
+     * messages written per round from the control, interactive and bulk lanes
+     */
+    private int[] laneWeights = {8, 4, 1};
+    private Set<Integer> controlCmds = Collections.emptySet();
+    private Set<Integer> bulkCmds = Collections.emptySet();
+
+    public boolean isFlushConsolidation() {
+        return flushConsolidation;
+    }
+
+    public void setFlushConsolidation(boolean flushConsolidation) {
+        this.flushConsolidation = flushConsolidation;
+    }
+
+    public int getMaxPendingFlushes() {
+        return maxPendingFlushes;
+    }
+
+    public void setMaxPendingFlushes(int maxPendingFlushes) {
+        this.maxPendingFlushes = maxPendingFlushes;
+    }
+
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    public void setFlushDelayMicros(long flushDelayMicros) {
+        this.flushDelayMicros = flushDelayMicros;
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    public int getMaxQueuedMessages() {
+        return maxQueuedMessages;
+    }
+
+    public void setMaxQueuedMessages(int maxQueuedMessages) {
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public void setMaxQueuedBytes(int maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public long getUnwritableTimeout() {
+        if (unwritableTimeout <= 0 && backpressurePolicy == BackpressurePolicy.DISCONNECT) {
+            return DEFAULT_DISCONNECT_TIMEOUT;
+        }
+        return unwritableTimeout;
+    }
+
+    public void setUnwritableTimeout(long unwritableTimeout) {
+        this.unwritableTimeout = unwritableTimeout;
+    }
+
+    public BackpressureMetrics getBackpressureMetrics() {
+        return backpressureMetrics;
+    }
+
+    public boolean isPriorityLanes() {
+        return priorityLanes;
+    }
+
+    public void setPriorityLanes(boolean priorityLanes) {
+        this.priorityLanes = priorityLanes;
+    }
+
+    public int getMaxLaneMessages() {
+        return maxLaneMessages;
+    }
+
+    public void setMaxLaneMessages(int maxLaneMessages) {
+        this.maxLaneMessages = maxLaneMessages;
+    }
+
+    public int getMaxLaneBytes() {
+        return maxLaneBytes;
+    }
+
+    public void setMaxLaneBytes(int maxLaneBytes) {
+        this.maxLaneBytes = maxLaneBytes;
+    }
+
+    public int[] getLaneWeights() {
+        return laneWeights;
+    }
+
+    public void setLaneWeights(int[] laneWeights) {
+        if (laneWeights.length != Priority.values().length) {
+            throw new IllegalArgumentException("one weight per priority: " + laneWeights.length);
+        }
+        for (int weight : laneWeights) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("lane weights must be positive: " + weight);
+            }
+        }
+        this.laneWeights = laneWeights;
+    }
+
+    public void setControlCmds(Set<Integer> controlCmds) {
+        this.controlCmds = controlCmds;
+    }
+
+    public void setBulkCmds(Set<Integer> bulkCmds) {
+        this.bulkCmds = bulkCmds;
+    }
+
+    /**
+     * @return priority of the cmd, INTERACTIVE unless configured as control or bulk
+     */
+    public Priority priorityOf(int cmd) {
+        if (controlCmds.contains(cmd)) {
+            return Priority.CONTROL;
+        }
+        if (bulkCmds.contains(cmd)) {
+            return Priority.BULK;
+        }
+        return Priority.INTERACTIVE;
+    }
+}
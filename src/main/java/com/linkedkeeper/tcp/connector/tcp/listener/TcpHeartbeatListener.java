@@ -28,110 +28,118 @@
  * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+
 package com.linkedkeeper.tcp.connector.tcp.listener;
 
 import com.linkedkeeper.tcp.connector.Session;
 import com.linkedkeeper.tcp.connector.api.listener.SessionEvent;
 import com.linkedkeeper.tcp.connector.api.listener.SessionListener;
 import com.linkedkeeper.tcp.connector.tcp.TcpSessionManager;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 
-public class TcpHeartbeatListener implements Runnable, SessionListener {
+/**
+ * Session expiry based on a hashed timing wheel.
+ * <p>
+ * Every session has one timeout at lastAccessedTime + maxInactiveInterval. Heartbeats only update the
+ * session's lastAccessedTime, when the timeout fires the session is either closed or rescheduled for the
+ * remaining time, so the cost is O(expired) instead of scanning all the sessions.
+ */
+public class TcpHeartbeatListener implements SessionListener {
 
     private final static Logger logger = LoggerFactory.getLogger(TcpHeartbeatListener.class);
 
     private TcpSessionManager tcpSessionManager = null;
 
-    private ReentrantLock lock = new ReentrantLock();
-    private Condition notEmpty = lock.newCondition();
-
     private int checkPeriod = 30 * 1000;
-    private volatile boolean stop = false;
+
+    private final HashedWheelTimer timer;
+
+    private final ConcurrentHashMap<Session, Timeout> timeouts = new ConcurrentHashMap<Session, Timeout>();
 
     public TcpHeartbeatListener(TcpSessionManager tcpSessionManager) {
-        this.tcpSessionManager = tcpSessionManager;
+        this(tcpSessionManager, 100);
     }
 
-    public void run() {
-        while (!stop) {
-            if (isEmpty()) {
-                awaitQueue();
-            }
-            logger.info("TcpHeartbeatListener/online session count : " + tcpSessionManager.getSessionCount());
-            // sleep period
-            try {
-                Thread.sleep(checkPeriod);
-            } catch (InterruptedException e) {
-                logger.error("TcpHeartbeatListener run occur InterruptedException!", e);
-            }
-            // is stop
-            if (stop) {
-                break;
-            }
-            // 检测在线用户，多久没有发送心跳，超过规定时间的删除掉
-            checkHeartBeat();
-        }
+    /**
+     * @param tcpSessionManager
+     * @param tickDuration      precision of the expiry in milliseconds
+     */
+    public TcpHeartbeatListener(TcpSessionManager tcpSessionManager, long tickDuration) {
+        this.tcpSessionManager = tcpSessionManager;
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("tcpHeartbeatListener", true),
+                tickDuration, TimeUnit.MILLISECONDS, 512);
+        this.timer.newTimeout(new CountTask(), checkPeriod, TimeUnit.MILLISECONDS);
     }
 
-    public void checkHeartBeat() {
-        Session[] sessions = tcpSessionManager.getSessions();
-        for (Session session : sessions) {
-            if (session.expire()) {
-                session.close();
-                logger.info("heart is expire,clear sessionId:" + session.getSessionId());
-            }
-        }
+    public void stop() {
+        timer.stop();
+        timeouts.clear();
     }
 
-    private boolean isEmpty() {
-        return tcpSessionManager.getSessionCount() == 0;
+    public int getScheduledCount() {
+        return timeouts.size();
     }
 
-    private void awaitQueue() {
-        boolean flag = lock.tryLock();
-        if (flag) {
-            try {
-                notEmpty.await();
-            } catch (InterruptedException e) {
-                logger.error("TcpHeartbeatListener awaitQueue occur InterruptedException!", e);
-            } catch (Exception e) {
-                logger.error("await Thread Queue error!", e);
-            } finally {
-                lock.unlock();
-            }
+    public void sessionCreated(SessionEvent se) {
+        Session session = se.getSession();
+        //A negative time indicates that the session should never time out.
+        if (session.getMaxInactiveInterval() < 0) {
+            return;
         }
+        Timeout timeout = timer.newTimeout(new ExpireTask(session), session.getMaxInactiveInterval() * 1000L, TimeUnit.MILLISECONDS);
+        timeouts.put(session, timeout);
     }
 
-    private void signalQueue() {
-        boolean flag = false;
-        try {
-            flag = lock.tryLock(100, TimeUnit.MILLISECONDS);
-            if (flag)
-                notEmpty.signalAll();
-        } catch (InterruptedException e) {
-            logger.error("TcpHeartbeatListener signalQueue occur InterruptedException!", e);
-        } catch (Exception e) {
-            logger.error("signal Thread Queue error!", e);
-        } finally {
-            if (flag)
-                lock.unlock();
+    public void sessionDestroyed(SessionEvent se) {
+        Timeout timeout = timeouts.remove(se.getSession());
+        if (timeout != null) {
+            timeout.cancel();
         }
     }
 
-    public void stop() {
-        this.stop = true;
-    }
+    private class ExpireTask implements TimerTask {
 
-    public void sessionCreated(SessionEvent se) {
-        signalQueue();
-    }
+        private final Session session;
 
-    public void sessionDestroyed(SessionEvent se) {
+        ExpireTask(Session session) {
+            this.session = session;
+        }
+
+        public void run(Timeout timeout) throws Exception {
+            if (!session.isValid()) {
+                timeouts.remove(session, timeout);
+                return;
+            }
+            long idle = System.currentTimeMillis() - session.getLastAccessedTime();
+            long remain = session.getMaxInactiveInterval() * 1000L - idle;
+            if (remain > 0) {
+                // 期间有心跳，按剩余时间重新调度
+                Timeout next = timer.newTimeout(this, remain, TimeUnit.MILLISECONDS);
+                if (!timeouts.replace(session, timeout, next)) {
+                    next.cancel();
+                }
+                return;
+            }
+            timeouts.remove(session, timeout);
+            String sessionId = session.getSessionId();
+            session.close();
+            logger.info("heart is expire,clear sessionId:" + sessionId);
+        }
     }
 
+    private class CountTask implements TimerTask {
+
+        public void run(Timeout timeout) throws Exception {
+            logger.info("TcpHeartbeatListener/online session count : " + tcpSessionManager.getSessionCount());
+            timer.newTimeout(this, checkPeriod, TimeUnit.MILLISECONDS);
+        }
+    }
 }
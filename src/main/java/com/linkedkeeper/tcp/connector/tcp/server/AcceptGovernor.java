@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import com.google.protobuf.ByteString;
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
+import com.linkedkeeper.tcp.connector.tcp.config.HandshakeMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of new connections, checked before their pipeline is built.
+ * <p>
+ * A connection is rejected when the server has maxConnections, when maxPendingHandshakes connections have
+ * not sent CONNECT yet, or when the accepts of the last second exceed acceptsPerSecond. A rejected channel
+ * gets the pre-encoded reject reply with its retry-after hint and is closed, it never reaches the session
+ * setup. 0 disables a limit.
+ * <p>
+ * Pending handshakes are counted by the {@link HandshakeMetrics} of the server, the limit is checked against
+ * them and may be exceeded by the channels accepted at the same time on other event loops.
+ */
+public class AcceptGovernor {
+
+    private final static Logger logger = LoggerFactory.getLogger(AcceptGovernor.class);
+
+    private int maxConnections = 0;
+    private int maxPendingHandshakes = 0;
+    private int acceptsPerSecond = 0;
+    private int acceptBurst = 0;
+    /**
+     * seconds the client should wait before reconnecting
+     */
+    private int retryAfter = 5;
+    /**
+     * cmd of the default reject reply
+     */
+    private int rejectCmd = 0;
+
+    private MessageBuf.JMTransfer.Builder rejectReply;
+
+    private HandshakeMetrics handshakeMetrics;
+    private TokenBucket acceptBucket;
+    private ByteBuf rejectFrame;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong rejectedByConnections = new AtomicLong();
+    private final AtomicLong rejectedByHandshakes = new AtomicLong();
+    private final AtomicLong rejectedByRate = new AtomicLong();
+
+    private final ChannelFutureListener closeListener = new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture future) throws Exception {
+            connections.decrementAndGet();
+        }
+    };
+
+    /**
+     * Admit the channel and track it until it closes, otherwise reject and close it.
+     *
+     * @return false if rejected, its pipeline must not be built
+     */
+    public boolean admit(Channel channel) {
+        if (maxConnections > 0 && connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            rejectedByConnections.incrementAndGet();
+            reject(channel);
+            return false;
+        } else if (maxConnections <= 0) {
+            connections.incrementAndGet();
+        }
+        if (maxPendingHandshakes > 0 && handshakeMetrics.getPending() >= maxPendingHandshakes) {
+            connections.decrementAndGet();
+            rejectedByHandshakes.incrementAndGet();
+            reject(channel);
+            return false;
+        }
+        if (acceptBucket != null && acceptBucket.tryAcquire(System.nanoTime()) > 0) {
+            connections.decrementAndGet();
+            rejectedByRate.incrementAndGet();
+            reject(channel);
+            return false;
+        }
+        channel.closeFuture().addListener(closeListener);
+        return true;
+    }
+
+    private void reject(Channel channel) {
+        logger.debug("reject connection from " + channel.remoteAddress() + ", connections -> " + connections.get()
+                + ", pending handshakes -> " + handshakeMetrics.getPending());
+        channel.writeAndFlush(rejectFrame.duplicate()).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * Called once by the channel initializer, after all properties are set.
+     *
+     * @param handshakeMetrics pending handshakes of the server
+     */
+    void init(HandshakeMetrics handshakeMetrics) {
+        this.handshakeMetrics = handshakeMetrics;
+        if (acceptsPerSecond > 0) {
+            acceptBucket = new TokenBucket(acceptsPerSecond, acceptBurst > 0 ? acceptBurst : acceptsPerSecond, System.nanoTime());
+        }
+        rejectFrame = Unpooled.unreleasableBuffer(encodeReject(rejectReply != null ? rejectReply : defaultReject()));
+        logger.info("AcceptGovernor maxConnections -> " + maxConnections + ", maxPendingHandshakes -> " + maxPendingHandshakes
+                + ", acceptsPerSecond -> " + acceptsPerSecond + ", retryAfter -> " + retryAfter + "s");
+    }
+
+    /**
+     * A notify of rejectCmd with empty header fields.
+     */
+    private MessageBuf.JMTransfer.Builder defaultReject() {
+        return MessageBuf.JMTransfer.newBuilder()
+                .setVersion("")
+                .setDeviceId("")
+                .setCmd(rejectCmd)
+                .setSeq(0)
+                .setFormat(3)
+                .setFlag(0)
+                .setPlatform("")
+                .setPlatformVersion("")
+                .setToken("")
+                .setAppKey("")
+                .setTimeStamp("")
+                .setSign("");
+    }
+
+    /**
+     * The reject reply with its varint length prefix, its body is {"retryAfter":N} unless the builder has one.
+     */
+    private ByteBuf encodeReject(MessageBuf.JMTransfer.Builder reply) {
+        MessageBuf.JMTransfer.Builder builder = reply.clone();
+        if (!builder.hasBody()) {
+            builder.setBody(ByteString.copyFromUtf8("{\"retryAfter\":" + retryAfter + "}"));
+        }
+        byte[] bytes = builder.build().toByteArray();
+        ByteBuf frame = Unpooled.buffer(5 + bytes.length);
+        int length = bytes.length;
+        while ((length & ~0x7F) != 0) {
+            frame.writeByte((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        frame.writeByte(length);
+        frame.writeBytes(bytes);
+        return frame;
+    }
+
+    public boolean isEnabled() {
+        return maxConnections > 0 || maxPendingHandshakes > 0 || acceptsPerSecond > 0;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public long getRejectedByConnections() {
+        return rejectedByConnections.get();
+    }
+
+    public long getRejectedByHandshakes() {
+        return rejectedByHandshakes.get();
+    }
+
+    public long getRejectedByRate() {
+        return rejectedByRate.get();
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setMaxPendingHandshakes(int maxPendingHandshakes) {
+        this.maxPendingHandshakes = maxPendingHandshakes;
+    }
+
+    public void setAcceptsPerSecond(int acceptsPerSecond) {
+        this.acceptsPerSecond = acceptsPerSecond;
+    }
+
+    public void setAcceptBurst(int acceptBurst) {
+        this.acceptBurst = acceptBurst;
+    }
+
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRejectCmd(int rejectCmd) {
+        this.rejectCmd = rejectCmd;
+    }
+
+    /**
+     * Reply written to rejected channels instead of the default one, encoded once.
+     */
+    public void setRejectReply(MessageBuf.JMTransfer.Builder rejectReply) {
+        this.rejectReply = rejectReply;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+
+/**
+ * Holds the frames of a channel while its first message is invoked off the event loop.
+ * <p>
+ * The first message of a channel is normally its CONNECT, which caches the header used by compact frames
+ * and binds the session used by the heartbeat fast path. When it runs on the invoke executor or an async
+ * proxy, the frames read meanwhile are held before the decoder and the channel stops reading, they are
+ * decoded in order once the invoke is done.
+ */
+public class ConnectGate extends ChannelInboundHandlerAdapter {
+
+    private final static Logger logger = LoggerFactory.getLogger(ConnectGate.class);
+
+    /**
+     * frames already read when the gate closes, more means the client does not wait for its CONNECT
+     */
+    static final int MAX_HELD_FRAMES = 256;
+
+    // only used by the event loop of the channel
+    private ChannelHandlerContext ctx;
+    private boolean closed;
+    private final ArrayDeque<Object> held = new ArrayDeque<Object>();
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!closed && held.isEmpty()) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        if (held.size() >= MAX_HELD_FRAMES) {
+            ReferenceCountUtil.release(msg);
+            logger.warn("channel sent more than " + MAX_HELD_FRAMES + " frames before its CONNECT is done, close it, ctx -> " + ctx.toString());
+            ctx.close();
+            return;
+        }
+        held.add(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (!closed) {
+            ctx.fireChannelReadComplete();
+        }
+    }
+
+    /**
+     * Called by the event loop before the first message is handed to another thread.
+     */
+    void close() {
+        closed = true;
+        ReadPause.pause(ctx.channel(), ReadPause.CONNECT);
+    }
+
+    /**
+     * Called by the event loop once the first message is done, decodes the held frames until one of them
+     * closes the gate again.
+     */
+    void open() {
+        if (!closed) {
+            return;
+        }
+        closed = false;
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        Object msg;
+        while (!closed && (msg = held.poll()) != null) {
+            ctx.fireChannelRead(msg);
+        }
+        if (!closed) {
+            ctx.fireChannelReadComplete();
+            ReadPause.resume(ctx.channel(), ReadPause.CONNECT);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Object msg;
+        while ((msg = held.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+        super.channelInactive(ctx);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import com.linkedkeeper.tcp.connector.tcp.config.HandshakeMetrics;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes a channel that does not send CONNECT within the deadline.
+ * <p>
+ * Such a channel has no session, so the heartbeat listener never reaps it. The deadline starts when the
+ * channel is active and is cancelled by {@link HandshakeEvent#COMPLETED}, after which the handler removes itself.
+ * With a timeout of 0 the handler only counts the handshake in {@link HandshakeMetrics}, which the
+ * {@link AcceptGovernor} checks against its pending handshake limit.
+ */
+public class HandshakeTimeoutHandler extends ChannelInboundHandlerAdapter {
+
+    private final static Logger logger = LoggerFactory.getLogger(HandshakeTimeoutHandler.class);
+
+    private final long timeoutMillis;
+    private final HandshakeMetrics metrics;
+
+    // only used by the event loop of the channel
+    private long startNanos;
+    private ScheduledFuture<?> timeoutFuture;
+    /**
+     * 0 not started, 1 pending, 2 done
+     */
+    private int state;
+
+    public HandshakeTimeoutHandler(long timeoutMillis, HandshakeMetrics metrics) {
+        this.timeoutMillis = timeoutMillis;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isActive()) {
+            start(ctx);
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        start(ctx);
+        super.channelActive(ctx);
+    }
+
+    private void start(final ChannelHandlerContext ctx) {
+        if (state != 0) {
+            return;
+        }
+        state = 1;
+        startNanos = System.nanoTime();
+        metrics.started();
+        if (timeoutMillis <= 0) {
+            return;
+        }
+        timeoutFuture = schedule(ctx, new Runnable() {
+            public void run() {
+                if (state == 1 && ctx.channel().isOpen()) {
+                    state = 2;
+                    metrics.timeout();
+                    logger.info("channel sent no CONNECT in " + timeoutMillis + "ms, close it, ctx -> " + ctx.toString());
+                    ctx.close();
+                }
+            }
+        }, timeoutMillis);
+    }
+
+    ScheduledFuture<?> schedule(ChannelHandlerContext ctx, Runnable task, long delayMillis) {
+        return ctx.executor().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == HandshakeEvent.COMPLETED) {
+            if (state == 1) {
+                state = 2;
+                cancel();
+                metrics.completed(System.nanoTime() - startNanos);
+            }
+            ctx.pipeline().remove(this);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (state == 1) {
+            state = 2;
+            cancel();
+            metrics.abandoned();
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void cancel() {
+        if (timeoutFuture != null) {
+            timeoutFuture.cancel(false);
+            timeoutFuture = null;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inbound message rates per session (channel), per remote IP and per appKey, a rate of 0 is unlimited.
+ * <p>
+ * Shared by the {@link RateLimitHandler} of all the channels. IP buckets live as long as the IP has
+ * channels, appKey buckets as long as the appKey has connected channels, an appKey is only taken from
+ * the CONNECT accepted by the proxy, so clients cannot fill the map with made-up keys.
+ */
+public class InboundRateLimiter {
+
+    private int sessionRate = 0;
+    private int sessionBurst = 0;
+    private int ipRate = 0;
+    private int ipBurst = 0;
+    private int appKeyRate = 0;
+    private int appKeyBurst = 0;
+
+    private final ConcurrentMap<InetAddress, TokenBucket> ipBuckets = new ConcurrentHashMap<InetAddress, TokenBucket>();
+    private final ConcurrentMap<String, TokenBucket> appKeyBuckets = new ConcurrentHashMap<String, TokenBucket>();
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    TokenBucket newSessionBucket() {
+        return sessionRate > 0 ? new TokenBucket(sessionRate, burst(sessionRate, sessionBurst), nanoTime()) : null;
+    }
+
+    /**
+     * Take a reference on the bucket of the IP, give it back by {@link #releaseIpBucket}.
+     */
+    TokenBucket retainIpBucket(SocketAddress remoteAddress) {
+        if (ipRate <= 0 || !(remoteAddress instanceof InetSocketAddress)) {
+            return null;
+        }
+        InetAddress address = ((InetSocketAddress) remoteAddress).getAddress();
+        for (; ; ) {
+            TokenBucket bucket = ipBuckets.get(address);
+            if (bucket == null) {
+                TokenBucket created = new TokenBucket(ipRate, burst(ipRate, ipBurst), nanoTime());
+                bucket = ipBuckets.putIfAbsent(address, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+            // a released bucket may be on its way out of the map, take a new one then
+            if (bucket.retain() > 1 || ipBuckets.get(address) == bucket) {
+                return bucket;
+            }
+            bucket.release();
+        }
+    }
+
+    void releaseIpBucket(SocketAddress remoteAddress, TokenBucket bucket) {
+        if (bucket.release() <= 0) {
+            ipBuckets.remove(((InetSocketAddress) remoteAddress).getAddress(), bucket);
+        }
+    }
+
+    /**
+     * Take a reference on the bucket of the appKey, give it back by {@link #releaseAppKeyBucket}.
+     */
+    TokenBucket retainAppKeyBucket(String appKey) {
+        if (appKeyRate <= 0 || appKey == null) {
+            return null;
+        }
+        for (; ; ) {
+            TokenBucket bucket = appKeyBuckets.get(appKey);
+            if (bucket == null) {
+                TokenBucket created = new TokenBucket(appKeyRate, burst(appKeyRate, appKeyBurst), nanoTime());
+                bucket = appKeyBuckets.putIfAbsent(appKey, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+            if (bucket.retain() > 1 || appKeyBuckets.get(appKey) == bucket) {
+                return bucket;
+            }
+            bucket.release();
+        }
+    }
+
+    void releaseAppKeyBucket(String appKey, TokenBucket bucket) {
+        if (bucket.release() <= 0) {
+            appKeyBuckets.remove(appKey, bucket);
+        }
+    }
+
+    void throttled() {
+        throttled.incrementAndGet();
+    }
+
+    /**
+     * Clock of the buckets.
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Run the resume of a paused channel once its buckets have tokens again.
+     */
+    ScheduledFuture<?> schedule(ChannelHandlerContext ctx, Runnable task, long delayNanos) {
+        return ctx.executor().schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static int burst(int rate, int burst) {
+        return burst > 0 ? burst : rate;
+    }
+
+    /**
+     * @return times a channel stopped reading for being over a limit
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    public int getIpBucketCount() {
+        return ipBuckets.size();
+    }
+
+    public int getAppKeyBucketCount() {
+        return appKeyBuckets.size();
+    }
+
+    public boolean isEnabled() {
+        return sessionRate > 0 || ipRate > 0 || appKeyRate > 0;
+    }
+
+    /**
+     * @param sessionRate messages per second of one session
+     */
+    public void setSessionRate(int sessionRate) {
+        this.sessionRate = sessionRate;
+    }
+
+    /**
+     * @param sessionBurst messages accepted at once, the rate if 0
+     */
+    public void setSessionBurst(int sessionBurst) {
+        this.sessionBurst = sessionBurst;
+    }
+
+    public void setIpRate(int ipRate) {
+        this.ipRate = ipRate;
+    }
+
+    public void setIpBurst(int ipBurst) {
+        this.ipBurst = ipBurst;
+    }
+
+    public void setAppKeyRate(int appKeyRate) {
+        this.appKeyRate = appKeyRate;
+    }
+
+    public void setAppKeyBurst(int appKeyBurst) {
+        this.appKeyBurst = appKeyBurst;
+    }
+}
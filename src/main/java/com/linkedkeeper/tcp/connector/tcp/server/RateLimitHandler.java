@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
+import com.linkedkeeper.tcp.constant.Constants;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+
+/**
+ * Inbound token buckets of one channel, in front of the server handler.
+ * <p>
+ * Every message takes a token from the buckets of its session, its remote IP and its appKey. When one of
+ * them is empty the channel stops reading (autoRead off), the messages already decoded from the last read
+ * are held in order, and reading resumes once tokens are available again, so nothing more is buffered.
+ */
+public class RateLimitHandler extends ChannelInboundHandlerAdapter {
+
+    private final static Logger logger = LoggerFactory.getLogger(RateLimitHandler.class);
+
+    /**
+     * messages decoded from the reads before the pause, more means the client floods a paused channel
+     */
+    static final int MAX_HELD_MESSAGES = 1024;
+
+    private final InboundRateLimiter limiter;
+
+    // only used by the event loop of the channel
+    private TokenBucket sessionBucket;
+    private TokenBucket ipBucket;
+    private SocketAddress remoteAddress;
+    private String appKey;
+    private TokenBucket appKeyBucket;
+    private final ArrayDeque<Object> held = new ArrayDeque<Object>();
+    private ScheduledFuture<?> resumeFuture;
+
+    public RateLimitHandler(InboundRateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        sessionBucket = limiter.newSessionBucket();
+        remoteAddress = ctx.channel().remoteAddress();
+        ipBucket = limiter.retainIpBucket(remoteAddress);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (ipBucket != null) {
+            limiter.releaseIpBucket(remoteAddress, ipBucket);
+            ipBucket = null;
+        }
+        if (appKeyBucket != null) {
+            limiter.releaseAppKeyBucket(appKey, appKeyBucket);
+            appKeyBucket = null;
+            appKey = null;
+        }
+        if (resumeFuture != null) {
+            resumeFuture.cancel(false);
+            resumeFuture = null;
+        }
+        Object msg;
+        while ((msg = held.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        // paused, keep the order of the messages decoded from the last read
+        if (!held.isEmpty()) {
+            hold(ctx, msg);
+            return;
+        }
+        long wait = acquire(ctx);
+        if (wait == 0) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        held.add(msg);
+        pause(ctx, wait);
+    }
+
+    private void hold(ChannelHandlerContext ctx, Object msg) {
+        if (held.size() >= MAX_HELD_MESSAGES) {
+            ReferenceCountUtil.release(msg);
+            logger.warn("channel sent more than " + MAX_HELD_MESSAGES + " messages over the inbound rate, close it, ctx -> " + ctx.toString());
+            ctx.close();
+            return;
+        }
+        held.add(msg);
+    }
+
+    private void pause(final ChannelHandlerContext ctx, long wait) {
+        if (!ReadPause.isPaused(ctx.channel(), ReadPause.RATE_LIMIT)) {
+            ReadPause.pause(ctx.channel(), ReadPause.RATE_LIMIT);
+            limiter.throttled();
+            logger.debug("channel over the inbound rate, stop reading for " + wait + "ns, ctx -> " + ctx.toString());
+        }
+        resumeFuture = limiter.schedule(ctx, new Runnable() {
+            public void run() {
+                resume(ctx);
+            }
+        }, wait);
+    }
+
+    private void resume(ChannelHandlerContext ctx) {
+        resumeFuture = null;
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        Object msg;
+        while ((msg = held.peek()) != null) {
+            long wait = acquire(ctx);
+            if (wait > 0) {
+                pause(ctx, wait);
+                return;
+            }
+            held.poll();
+            ctx.fireChannelRead(msg);
+        }
+        ctx.fireChannelReadComplete();
+        // the connect gate may still hold the channel paused
+        ReadPause.resume(ctx.channel(), ReadPause.RATE_LIMIT);
+    }
+
+    /**
+     * Take a token from every bucket, the tokens already taken are given back when a later bucket is empty,
+     * so a held message is only charged once it goes through.
+     *
+     * @return 0 if all the buckets gave a token, otherwise nanoseconds to wait
+     */
+    private long acquire(ChannelHandlerContext ctx) {
+        // resolved first, a bucket created after now would refuse its first token
+        TokenBucket appKeyBucket = appKeyBucket(ctx);
+        long now = limiter.nanoTime();
+        long wait;
+        if (sessionBucket != null && (wait = sessionBucket.tryAcquire(now)) > 0) {
+            return wait;
+        }
+        if (ipBucket != null && (wait = ipBucket.tryAcquire(now)) > 0) {
+            refund(sessionBucket);
+            return wait;
+        }
+        if (appKeyBucket != null && (wait = appKeyBucket.tryAcquire(now)) > 0) {
+            refund(sessionBucket);
+            refund(ipBucket);
+            return wait;
+        }
+        return 0;
+    }
+
+    private static void refund(TokenBucket bucket) {
+        if (bucket != null) {
+            bucket.refund();
+        }
+    }
+
+    /**
+     * appKey of the CONNECT header cached on the channel, none before CONNECT.
+     */
+    private TokenBucket appKeyBucket(ChannelHandlerContext ctx) {
+        MessageBuf.JMTransfer header = ctx.channel().attr(Constants.SERVER_HEADER).get();
+        String appKey = header != null ? header.getAppKey() : null;
+        if (appKey == null) {
+            return null;
+        }
+        if (!appKey.equals(this.appKey)) {
+            if (appKeyBucket != null) {
+                limiter.releaseAppKeyBucket(this.appKey, appKeyBucket);
+            }
+            this.appKey = appKey;
+            this.appKeyBucket = limiter.retainAppKeyBucket(appKey);
+        }
+        return appKeyBucket;
+    }
+}
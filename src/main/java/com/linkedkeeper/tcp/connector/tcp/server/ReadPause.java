@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import com.linkedkeeper.tcp.constant.Constants;
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+
+/**
+ * autoRead of a channel shared by the handlers that pause it, reading resumes only once none of them
+ * holds it paused. Called by the event loop of the channel.
+ */
+final class ReadPause {
+
+    static final int CONNECT = 1;
+    static final int RATE_LIMIT = 1 << 1;
+
+    private ReadPause() {
+    }
+
+    static void pause(Channel channel, int reason) {
+        Attribute<Integer> attr = channel.attr(Constants.SERVER_READ_PAUSE);
+        Integer reasons = attr.get();
+        attr.set(reasons == null ? reason : reasons | reason);
+        channel.config().setAutoRead(false);
+    }
+
+    /**
+     * @return true if reading is resumed, false if another handler still holds it paused
+     */
+    static boolean resume(Channel channel, int reason) {
+        Attribute<Integer> attr = channel.attr(Constants.SERVER_READ_PAUSE);
+        Integer reasons = attr.get();
+        int left = reasons == null ? 0 : reasons & ~reason;
+        attr.set(left);
+        if (left != 0) {
+            return false;
+        }
+        channel.config().setAutoRead(true);
+        return true;
+    }
+
+    static boolean isPaused(Channel channel, int reason) {
+        Integer reasons = channel.attr(Constants.SERVER_READ_PAUSE).get();
+        return reasons != null && (reasons & reason) != 0;
+    }
+}
@@ -30,6 +30,8 @@
 
 package com.linkedkeeper.tcp.connector.tcp.server;
 
+import com.linkedkeeper.tcp.connector.tcp.codec.CompressionHandler;
+import com.linkedkeeper.tcp.connector.tcp.codec.FrameEncoder;
 import com.linkedkeeper.tcp.connector.tcp.codec.ProtobufAdapter;
 import com.linkedkeeper.tcp.connector.tcp.config.ServerTransportConfig;
 import io.netty.channel.ChannelHandler;
@@ -37,26 +39,62 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
-import io.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
 
 @ChannelHandler.Sharable
 public class ServerChannelInitializer extends ChannelInitializer<SocketChannel> {
 
+    /**
+     * the frame encoder writes {@link com.linkedkeeper.tcp.connector.tcp.codec.EncodedFrame} as it is
+     */
+    public static final String FRAME_ENCODER = "frameEncoder";
+
     private ServerTransportConfig config;
+    private CompressionHandler compressionHandler;
+    private InboundRateLimiter rateLimiter;
+    private AcceptGovernor acceptGovernor;
 
     public ServerChannelInitializer(ServerTransportConfig config) {
         this.config = config;
+        if (config.isCompressEnabled()) {
+            this.compressionHandler = new CompressionHandler(config);
+        }
+        if (config.getRateLimiter() != null && config.getRateLimiter().isEnabled()) {
+            this.rateLimiter = config.getRateLimiter();
+        }
+        if (config.getAcceptGovernor() != null && config.getAcceptGovernor().isEnabled()) {
+            this.acceptGovernor = config.getAcceptGovernor();
+            this.acceptGovernor.init(config.getHandshakeMetrics());
+        }
     }
 
     @Override
     protected void initChannel(SocketChannel socketChannel) throws Exception {
+        // rejected sockets are closed before any handler is created
+        if (acceptGovernor != null && !acceptGovernor.admit(socketChannel)) {
+            return;
+        }
         ProtobufAdapter adapter = new ProtobufAdapter(config);
 
         ChannelPipeline pipeline = socketChannel.pipeline();
+        if (config.getHandshakeTimeout() > 0 || acceptGovernor != null) {
+            // also counts the pending handshakes checked by the governor, removes itself once the CONNECT is done
+            pipeline.addLast("handshakeTimeout", new HandshakeTimeoutHandler(config.getHandshakeTimeout(), config.getHandshakeMetrics()));
+        }
         pipeline.addLast("frameDecoder", new ProtobufVarint32FrameDecoder());
+        if (config.getInvokeExecutor() != null || config.getAsyncProxy() != null) {
+            // the first message is invoked off the event loop, later frames wait for it before the decoder
+            pipeline.addLast("connectGate", new ConnectGate());
+        }
         pipeline.addLast("decoder", adapter.getDecoder());
-        pipeline.addLast("frameEncoder", new ProtobufVarint32LengthFieldPrepender());
+        if (rateLimiter != null) {
+            // before decompression, held messages stay small
+            pipeline.addLast("rateLimit", new RateLimitHandler(rateLimiter));
+        }
+        pipeline.addLast(FRAME_ENCODER, new FrameEncoder());
         pipeline.addLast("encoder", adapter.getEncoder());
+        if (compressionHandler != null) {
+            pipeline.addLast("compression", compressionHandler);
+        }
         pipeline.addLast("handler", new TcpServerHandler(config));
     }
 }
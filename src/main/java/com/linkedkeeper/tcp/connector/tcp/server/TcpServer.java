@@ -33,15 +33,34 @@ package com.linkedkeeper.tcp.connector.tcp.server;
 import com.linkedkeeper.tcp.connector.tcp.config.ServerTransportConfig;
 import com.linkedkeeper.tcp.exception.InitErrorException;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -55,17 +74,95 @@ public class TcpServer {
 
     private int port;
 
-    private static final int BIZ_GROUP_SIZE = Runtime.getRuntime().availableProcessors() * 2;
-    private static final int BIZ_THREAD_SIZE = 4;
+    /**
+     * 是否使用 linux native epoll 传输，不可用时自动回退到 nio
+     */
+    private boolean epoll = false;
+    /**
+     * epoll 下 TCP_FASTOPEN 的等待队列长度，0 表示不开启
+     */
+    private int tcpFastOpen = 0;
+    /**
+     * 监听同一端口的 acceptor 数量，大于 1 时基于 SO_REUSEPORT 绑定多个 listen socket，仅 epoll 下生效
+     */
+    private int acceptors = 1;
 
-    private final EventLoopGroup bossGroup = new NioEventLoopGroup(BIZ_GROUP_SIZE);
-    private final EventLoopGroup workerGroup = new NioEventLoopGroup(BIZ_THREAD_SIZE);
+    private static final int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * boss 线程数，只负责 accept，默认与 acceptor 数量一致
+     */
+    private int bossThreads = 0;
+    /**
+     * worker 线程数，负责所有连接的 I/O，默认 cpu 核数 * 2
+     */
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+    /**
+     * 线程名前缀，生成 xxx-boss-n 与 xxx-worker-n
+     */
+    private String threadName = "tcp-server";
+    /**
+     * worker 线程中 I/O 与任务执行的时间占比，仅 nio 下生效
+     */
+    private int ioRatio = 50;
+    /**
+     * 自定义 worker 线程工厂，可用于绑定 cpu 亲和性
+     */
+    private ThreadFactory workerThreadFactory = null;
+
+    /**
+     * 是否使用池化的 ByteBuf 分配器，server 与 child channel 共用
+     */
+    private boolean pooledAllocator = true;
+    /**
+     * 是否优先使用堆外内存
+     */
+    private boolean preferDirect = true;
+    /**
+     * arena 数量，0 表示使用 netty 默认值
+     */
+    private int allocatorArenas = 0;
+    /**
+     * page 大小，chunk 大小为 pageSize << maxOrder
+     */
+    private int allocatorPageSize = PooledByteBufAllocator.defaultPageSize();
+    private int allocatorMaxOrder = PooledByteBufAllocator.defaultMaxOrder();
+    /**
+     * 分配器统计日志的输出间隔(秒)，0 表示不输出
+     */
+    private int allocatorMetricInterval = 60;
+
+    private ByteBufAllocator allocator;
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+
+    private final List<Channel> serverChannels = new ArrayList<Channel>();
 
     public void init() throws Exception {
         boolean flag = Boolean.FALSE;
         logger.info("start tcp server ...");
 
-        Class clazz = NioServerSocketChannel.class;
+        boolean useEpoll = useEpoll();
+        int acceptorCount = acceptorCount(useEpoll);
+        int bossSize = Math.max(bossThreads, acceptorCount);
+        int workerSize = workerThreads > 0 ? workerThreads : DEFAULT_WORKER_THREADS;
+        ThreadFactory bossFactory = new DefaultThreadFactory(threadName + "-boss");
+        ThreadFactory workerFactory = workerThreadFactory != null ? workerThreadFactory
+                : new DefaultThreadFactory(threadName + "-worker");
+        Class<? extends ServerChannel> clazz;
+        if (useEpoll) {
+            // epoll ignores ioRatio
+            bossGroup = new EpollEventLoopGroup(bossSize, bossFactory);
+            workerGroup = new EpollEventLoopGroup(workerSize, workerFactory);
+            clazz = EpollServerSocketChannel.class;
+        } else {
+            NioEventLoopGroup worker = new NioEventLoopGroup(workerSize, workerFactory);
+            worker.setIoRatio(ioRatio);
+            bossGroup = new NioEventLoopGroup(bossSize, bossFactory);
+            workerGroup = worker;
+            clazz = NioServerSocketChannel.class;
+        }
         // Server 服务启动
         ServerBootstrap bootstrap = new ServerBootstrap();
 
@@ -73,28 +170,142 @@ public class TcpServer {
         bootstrap.channel(clazz);
         bootstrap.childHandler(new ServerChannelInitializer(serverConfig));
         // 可选参数
-        bootstrap.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, 32 * 1024);
-
-        // 绑定接口，同步等待成功
-        logger.info("start tcp server at port[" + port + "].");
-        ChannelFuture future = bootstrap.bind(port).sync();
-        ChannelFuture channelFuture = future.addListener(new ChannelFutureListener() {
-            public void operationComplete(ChannelFuture future) throws Exception {
-                if (future.isSuccess()) {
-                    logger.info("Server have success bind to " + port);
-                } else {
-                    logger.error("Server fail bind to " + port);
-                    throw new InitErrorException("Server start fail !", future.cause());
+        allocator = createAllocator();
+        bootstrap.option(ChannelOption.ALLOCATOR, allocator);
+        bootstrap.childOption(ChannelOption.ALLOCATOR, allocator);
+        bootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                new WriteBufferWaterMark(WriteBufferWaterMark.DEFAULT.low(), 32 * 1024));
+        if (useEpoll) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            if (tcpFastOpen > 0) {
+                bootstrap.option(EpollChannelOption.TCP_FASTOPEN, tcpFastOpen);
+            }
+            bootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+        }
+        logger.info("tcp server topology: transport=" + (useEpoll ? "epoll" : "nio")
+                + ", acceptors=" + acceptorCount + ", bossThreads=" + bossSize + ", workerThreads=" + workerSize
+                + ", ioRatio=" + (useEpoll ? "n/a" : String.valueOf(ioRatio)) + ", threadName=" + threadName
+                + ", workerThreadFactory=" + (workerThreadFactory != null ? workerThreadFactory.getClass().getName() : "default"));
+
+        // 绑定接口，同步等待成功，每次 bind 会注册到 bossGroup 中的下一个线程
+        logger.info("start tcp server at port[" + port + "] with " + acceptorCount + " acceptor(s).");
+        for (int i = 0; i < acceptorCount; i++) {
+            ChannelFuture future = bootstrap.bind(port).sync();
+            ChannelFuture channelFuture = future.addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        logger.info("Server have success bind to " + port);
+                    } else {
+                        logger.error("Server fail bind to " + port);
+                        throw new InitErrorException("Server start fail !", future.cause());
+                    }
+                }
+            });
+            serverChannels.add(channelFuture.channel());
+        }
+
+        scheduleAllocatorMetric();
+    }
+
+    private ByteBufAllocator createAllocator() {
+        if (!pooledAllocator) {
+            logger.info("tcp server allocator: unpooled, preferDirect=" + preferDirect);
+            return new UnpooledByteBufAllocator(preferDirect);
+        }
+        int heapArenas = allocatorArenas > 0 ? allocatorArenas : PooledByteBufAllocator.defaultNumHeapArena();
+        int directArenas = allocatorArenas > 0 ? allocatorArenas : PooledByteBufAllocator.defaultNumDirectArena();
+        logger.info("tcp server allocator: pooled, preferDirect=" + preferDirect + ", heapArenas=" + heapArenas
+                + ", directArenas=" + directArenas + ", pageSize=" + allocatorPageSize + ", maxOrder=" + allocatorMaxOrder
+                + ", chunkSize=" + (allocatorPageSize << allocatorMaxOrder));
+        // thread caches keep netty's defaults
+        return new PooledByteBufAllocator(preferDirect, heapArenas, directArenas, allocatorPageSize, allocatorMaxOrder,
+                PooledByteBufAllocator.defaultTinyCacheSize(), PooledByteBufAllocator.defaultSmallCacheSize(),
+                PooledByteBufAllocator.defaultNormalCacheSize(), PooledByteBufAllocator.defaultUseCacheForAllThreads());
+    }
+
+    private void scheduleAllocatorMetric() {
+        if (allocatorMetricInterval <= 0 || !(allocator instanceof PooledByteBufAllocator)) {
+            return;
+        }
+        bossGroup.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                logger.info("tcp server allocator metric: " + getAllocatorMetric());
+            }
+        }, allocatorMetricInterval, allocatorMetricInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return used memory, and chunks / used bytes / active allocations of each arena, null if the allocator is not pooled
+     */
+    public String getAllocatorMetric() {
+        if (!(allocator instanceof PooledByteBufAllocator)) {
+            return null;
+        }
+        PooledByteBufAllocatorMetric metric = ((PooledByteBufAllocator) allocator).metric();
+        StringBuilder sb = new StringBuilder();
+        sb.append("usedDirectMemory=").append(metric.usedDirectMemory())
+                .append(", usedHeapMemory=").append(metric.usedHeapMemory())
+                .append(", chunkSize=").append(metric.chunkSize());
+        appendArenaMetric(sb, "direct", metric.directArenas());
+        appendArenaMetric(sb, "heap", metric.heapArenas());
+        return sb.toString();
+    }
+
+    private static void appendArenaMetric(StringBuilder sb, String type, List<PoolArenaMetric> arenas) {
+        for (int i = 0; i < arenas.size(); i++) {
+            PoolArenaMetric arena = arenas.get(i);
+            int chunks = 0;
+            long usedBytes = 0;
+            for (PoolChunkListMetric chunkList : arena.chunkLists()) {
+                for (PoolChunkMetric chunk : chunkList) {
+                    chunks++;
+                    usedBytes += chunk.chunkSize() - chunk.freeBytes();
                 }
             }
-        });
+            if (chunks == 0) {
+                continue;
+            }
+            sb.append(", ").append(type).append("Arena[").append(i).append("]={chunks=").append(chunks)
+                    .append(", usedBytes=").append(usedBytes)
+                    .append(", activeAllocations=").append(arena.numActiveAllocations()).append('}');
+        }
+    }
+
+    private int acceptorCount(boolean useEpoll) {
+        if (acceptors <= 1) {
+            return 1;
+        }
+        if (!useEpoll) {
+            logger.warn("multiple acceptors need epoll SO_REUSEPORT, bind only one acceptor.");
+            return 1;
+        }
+        return acceptors;
+    }
+
+    private boolean useEpoll() {
+        if (!epoll) {
+            return false;
+        }
+        if (!Epoll.isAvailable()) {
+            logger.warn("epoll is not available, fall back to nio.", Epoll.unavailabilityCause());
+            return false;
+        }
+        return true;
     }
 
     public void shutdown() {
         logger.info("shutdown tcp server ...");
+        for (Channel channel : serverChannels) {
+            channel.close().awaitUninterruptibly();
+        }
+        serverChannels.clear();
         // 释放线程池资源
-        bossGroup.shutdownGracefully();
-        workerGroup.shutdownGracefully();
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully();
+        }
+        if (workerGroup != null) {
+            workerGroup.shutdownGracefully();
+        }
         logger.info("shutdown tcp server end.");
     }
 
@@ -108,4 +319,60 @@ public class TcpServer {
     public void setPort(int port) {
         this.port = port;
     }
+
+    public void setEpoll(boolean epoll) {
+        this.epoll = epoll;
+    }
+
+    public void setTcpFastOpen(int tcpFastOpen) {
+        this.tcpFastOpen = tcpFastOpen;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public void setThreadName(String threadName) {
+        this.threadName = threadName;
+    }
+
+    public void setIoRatio(int ioRatio) {
+        this.ioRatio = ioRatio;
+    }
+
+    public void setWorkerThreadFactory(ThreadFactory workerThreadFactory) {
+        this.workerThreadFactory = workerThreadFactory;
+    }
+
+    public void setPooledAllocator(boolean pooledAllocator) {
+        this.pooledAllocator = pooledAllocator;
+    }
+
+    public void setPreferDirect(boolean preferDirect) {
+        this.preferDirect = preferDirect;
+    }
+
+    public void setAllocatorArenas(int allocatorArenas) {
+        this.allocatorArenas = allocatorArenas;
+    }
+
+    public void setAllocatorPageSize(int allocatorPageSize) {
+        this.allocatorPageSize = allocatorPageSize;
+    }
+
+    public void setAllocatorMaxOrder(int allocatorMaxOrder) {
+        this.allocatorMaxOrder = allocatorMaxOrder;
+    }
+
+    public void setAllocatorMetricInterval(int allocatorMetricInterval) {
+        this.allocatorMetricInterval = allocatorMetricInterval;
+    }
 }
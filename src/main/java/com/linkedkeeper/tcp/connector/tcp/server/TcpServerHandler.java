@@ -30,11 +30,19 @@
 
 package com.linkedkeeper.tcp.connector.tcp.server;
 
+import com.linkedkeeper.tcp.connector.Session;
+import com.linkedkeeper.tcp.connector.tcp.TcpConnection;
 import com.linkedkeeper.tcp.connector.tcp.TcpConnector;
+import com.linkedkeeper.tcp.connector.tcp.codec.BodyCompression;
+import com.linkedkeeper.tcp.connector.tcp.codec.EncodedFrame;
+import com.linkedkeeper.tcp.connector.tcp.codec.HeartbeatFrame;
+import com.linkedkeeper.tcp.connector.tcp.codec.JMTransferHeader;
 import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
 import com.linkedkeeper.tcp.connector.tcp.config.ServerTransportConfig;
 import com.linkedkeeper.tcp.constant.Constants;
 import com.linkedkeeper.tcp.invoke.ApiProxy;
+import com.linkedkeeper.tcp.invoke.AsyncApiProxy;
+import com.linkedkeeper.tcp.invoke.InvokeExecutor;
 import com.linkedkeeper.tcp.message.MessageWrapper;
 import com.linkedkeeper.tcp.message.SystemMessage;
 import com.linkedkeeper.tcp.notify.NotifyProxy;
@@ -42,12 +50,17 @@ import com.linkedkeeper.tcp.utils.NetUtils;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 //public class TcpServerHandler extends ChannelHandlerAdapter {
 @ChannelHandler.Sharable
@@ -57,29 +70,48 @@ public class TcpServerHandler extends ChannelInboundHandlerAdapter {
 
     private TcpConnector tcpConnector = null;
     private ApiProxy proxy = null;
+    private AsyncApiProxy asyncProxy = null;
     private NotifyProxy notify = null;
+    private InvokeExecutor invokeExecutor = null;
+    private int heartbeatCmd = -1;
+    private HeartbeatFrame heartbeatFrame = null;
+    private List<BodyCompression> compressions = null;
 
     public TcpServerHandler(ServerTransportConfig config) {
         this.tcpConnector = config.getTcpConnector();
         this.proxy = config.getProxy();
+        this.asyncProxy = config.getAsyncProxy();
         this.notify = config.getNotify();
+        this.invokeExecutor = config.getInvokeExecutor();
+        this.heartbeatCmd = config.getHeartbeatCmd();
+        this.compressions = config.isCompressEnabled() ? config.getCompressions() : null;
+        this.heartbeatFrame = config.getHeartbeatFrame();
     }
 
     public void channelRead(ChannelHandlerContext ctx, Object o) throws Exception {
         try {
             if (o instanceof MessageBuf.JMTransfer) {
-                SystemMessage sMsg = generateSystemMessage(ctx);
                 MessageBuf.JMTransfer message = (MessageBuf.JMTransfer) o;
                 // inbound
                 if (message.getFormat() == SEND) {
-                    MessageWrapper wrapper = proxy.invoke(sMsg, message);
-                    if (wrapper != null)
-                        this.receive(ctx, wrapper);
+                    if (message.getCmd() == heartbeatCmd && heartbeat0(ctx, message.getSeq())) {
+                        return;
+                    }
+                    SystemMessage sMsg = generateSystemMessage(ctx);
+                    invoke(ctx, sMsg, message);
                 }
                 // outbound
                 if (message.getFormat() == REPLY) {
                     notify.reply(message);
                 }
+            } else if (o instanceof JMTransferHeader) {
+                // replies and heartbeats, decoded without building the message
+                JMTransferHeader header = (JMTransferHeader) o;
+                if (header.getFormat() == REPLY) {
+                    notify.reply(header.getSeq());
+                } else if (!heartbeat0(ctx, header.getSeq())) {
+                    logger.warn("TcpServerHandler drop heartbeat of a channel without session, ctx -> " + ctx.toString());
+                }
             } else {
                 logger.warn("TcpServerHandler channelRead message is not proto.");
             }
@@ -107,6 +139,10 @@ public class TcpServerHandler extends ChannelInboundHandlerAdapter {
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
         logger.debug("TcpServerHandler channelInactive from (" + getRemoteAddress(ctx) + ")");
+        TcpConnection connection = getConnection(ctx);
+        if (connection != null) {
+            connection.channelClosed();
+        }
         String sessionId0 = getChannelSessionHook(ctx);
         if (StringUtils.isNotBlank(sessionId0)) {
             tcpConnector.close(new MessageWrapper(MessageWrapper.MessageProtocol.CLOSE, sessionId0, null));
@@ -114,6 +150,23 @@ public class TcpServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        TcpConnection connection = getConnection(ctx);
+        if (connection != null) {
+            connection.writabilityChanged();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    private TcpConnection getConnection(ChannelHandlerContext ctx) {
+        Session session = ctx.channel().attr(Constants.SERVER_SESSION).get();
+        if (session != null && session.getConnection() instanceof TcpConnection) {
+            return (TcpConnection) session.getConnection();
+        }
+        return null;
+    }
+
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         logger.warn("TcpServerHandler (" + getRemoteAddress(ctx) + ") -> Unexpected exception from downstream." + cause);
         String sessionId0 = getChannelSessionHook(ctx);
@@ -135,19 +188,141 @@ public class TcpServerHandler extends ChannelInboundHandlerAdapter {
     final int NOTIFY = 3;
     final int REPLY = 4;
 
+    /**
+     * invoke the proxy on the business executor if configured, the result is received on the channel's event loop.
+     * <p>
+     * Until the channel has a session, its frames are held by the {@link ConnectGate} while the message is
+     * invoked off the event loop, so the frames sent right after CONNECT are decoded once it is done.
+     *
+     * @param ctx
+     * @param sMsg
+     * @param message
+     */
+    private void invoke(final ChannelHandlerContext ctx, final SystemMessage sMsg, final MessageBuf.JMTransfer message) {
+        if (asyncProxy == null && invokeExecutor == null) {
+            MessageWrapper wrapper = proxy.invoke(sMsg, message);
+            if (wrapper != null)
+                this.receive(ctx, wrapper, message);
+            return;
+        }
+        final ConnectGate gate = ctx.channel().attr(Constants.SERVER_SESSION).get() == null
+                ? ctx.pipeline().get(ConnectGate.class) : null;
+        if (gate != null) {
+            gate.close();
+        }
+        if (invokeExecutor == null) {
+            invokeAsync(ctx, sMsg, message, gate);
+            return;
+        }
+        boolean executed;
+        try {
+            executed = invokeExecutor.execute(ctx.channel(), new Runnable() {
+                public void run() {
+                    if (asyncProxy != null) {
+                        try {
+                            invokeAsync(ctx, sMsg, message, gate);
+                        } catch (Exception e) {
+                            invokeFailed(ctx, e);
+                        }
+                        return;
+                    }
+                    MessageWrapper wrapper = null;
+                    try {
+                        wrapper = proxy.invoke(sMsg, message);
+                    } catch (Exception e) {
+                        logger.error("TcpServerHandler invoke occur Exception.", e);
+                    }
+                    completeOnEventLoop(ctx, wrapper, message, gate);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // ABORT, the client would wait for a reply that never comes
+            invokeFailed(ctx, e);
+            return;
+        }
+        // DISCARD drops the message, the frames behind it must not wait for it
+        if (!executed && gate != null) {
+            gate.open();
+        }
+    }
+
+    /**
+     * the promise is bound to the channel's event loop, so the listener is notified on it
+     */
+    private void invokeAsync(final ChannelHandlerContext ctx, SystemMessage sMsg, final MessageBuf.JMTransfer message, final ConnectGate gate) {
+        Promise<MessageWrapper> promise = ctx.executor().newPromise();
+        Future<MessageWrapper> future = asyncProxy.invoke(sMsg, message, promise);
+        if (future == null) {
+            future = promise;
+        }
+        future.addListener(new GenericFutureListener<Future<MessageWrapper>>() {
+            public void operationComplete(Future<MessageWrapper> future) throws Exception {
+                if (!future.isSuccess()) {
+                    invokeFailed(ctx, future.cause());
+                    return;
+                }
+                completeOnEventLoop(ctx, future.getNow(), message, gate);
+            }
+        });
+    }
+
+    /**
+     * The message cannot be answered, close the channel so the client does not wait for the reply until its
+     * own timeout, the session is closed by channelInactive.
+     */
+    private void invokeFailed(ChannelHandlerContext ctx, Throwable cause) {
+        logger.error("TcpServerHandler invoke failed, close the channel, ctx -> " + ctx.toString(), cause);
+        ctx.close();
+    }
+
+    private void completeOnEventLoop(final ChannelHandlerContext ctx, final MessageWrapper wrapper, final MessageBuf.JMTransfer message,
+                                     final ConnectGate gate) {
+        if (ctx.executor().inEventLoop()) {
+            complete(ctx, wrapper, message, gate);
+            return;
+        }
+        ctx.executor().execute(new Runnable() {
+            public void run() {
+                complete(ctx, wrapper, message, gate);
+            }
+        });
+    }
+
+    private void complete(ChannelHandlerContext ctx, MessageWrapper wrapper, MessageBuf.JMTransfer message, ConnectGate gate) {
+        if (wrapper != null) {
+            receiveIfActive(ctx, wrapper, message);
+        }
+        if (gate != null) {
+            gate.open();
+        }
+    }
+
+    private void receiveIfActive(ChannelHandlerContext ctx, MessageWrapper wrapper, MessageBuf.JMTransfer message) {
+        if (!ctx.channel().isActive()) {
+            logger.debug("TcpServerHandler channel is inactive, drop the wrapper of sessionId -> " + wrapper.getSessionId());
+            return;
+        }
+        try {
+            receive(ctx, wrapper, message);
+        } catch (Exception e) {
+            logger.error("TcpServerHandler receive occur Exception.", e);
+        }
+    }
+
     /**
      * to send client and receive the message
      *
      * @param ctx
      * @param wrapper
+     * @param message the request of the wrapper
      */
-    private void receive(ChannelHandlerContext ctx, MessageWrapper wrapper) {
+    private void receive(ChannelHandlerContext ctx, MessageWrapper wrapper, MessageBuf.JMTransfer message) {
         if (wrapper.isConnect()) {
-            isConnect0(ctx, wrapper);
+            isConnect0(ctx, wrapper, message);
         } else if (wrapper.isClose()) {
             tcpConnector.close(wrapper);
         } else if (wrapper.isHeartbeat()) {
-            tcpConnector.heartbeatClient(wrapper);
+            tcpConnector.heartbeatClient(ctx, wrapper);
         } else if (wrapper.isSend()) {
             tcpConnector.responseSendMessage(wrapper);
         } else if (wrapper.isNoKeepAliveMessage()) {
@@ -155,9 +330,39 @@ public class TcpServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
-    private void isConnect0(ChannelHandlerContext ctx, MessageWrapper wrapper) {
+    /**
+     * answer the heartbeat with the configured reply and its seq, without reaching the proxy or the session manager.
+     * The reply is encoded once per wire format, only the seq is written per heartbeat, the frame is compact if
+     * the session is and goes through the backpressure policy of the connection.
+     *
+     * @param ctx
+     * @param seq seq of the heartbeat
+     * @return false if the fast path is disabled or the channel has no session yet
+     */
+    private boolean heartbeat0(ChannelHandlerContext ctx, long seq) {
+        if (heartbeatFrame == null) {
+            return false;
+        }
+        Session session = ctx.channel().attr(Constants.SERVER_SESSION).get();
+        if (session == null) {
+            return false;
+        }
+        session.access();
+        boolean compact = ctx.channel().attr(Constants.SERVER_COMPACT).get() != null;
+        session.getConnection().send(new EncodedFrame(heartbeatFrame.encode(ctx.alloc(), compact, seq)));
+        return true;
+    }
+
+    private void isConnect0(ChannelHandlerContext ctx, MessageWrapper wrapper, MessageBuf.JMTransfer message) {
         String sessionId = wrapper.getSessionId();
         String sessionId0 = getChannelSessionHook(ctx);
+        // session-level fields of CONNECT, later compact frames of the channel only carry cmd/seq/format/flag/body
+        ctx.channel().attr(Constants.SERVER_HEADER).set(message.toBuilder().clearBody().build());
+        // body compression advertised by the flag of CONNECT
+        BodyCompression compression = BodyCompression.negotiate(compressions, message.getFlag());
+        if (compression != null) {
+            ctx.channel().attr(Constants.SERVER_COMPRESSION).set(compression);
+        }
         if (sessionId.equals(sessionId0)) {
             logger.info("tcpConnector reconnect sessionId -> " + sessionId + ", ctx -> " + ctx.toString());
             tcpConnector.responseSendMessage(wrapper);
@@ -166,6 +371,7 @@ public class TcpServerHandler extends ChannelInboundHandlerAdapter {
             tcpConnector.connect(ctx, wrapper);
             setChannelSessionHook(ctx, sessionId);
             logger.info("create channel attr sessionId " + sessionId + " successful, ctx -> " + ctx.toString());
+            ctx.pipeline().fireUserEventTriggered(HandshakeEvent.COMPLETED);
         }
     }
 
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Token bucket in its GCRA form: the whole state is one theoretical arrival time, updated by CAS, so
+ * acquiring a token allocates nothing and takes no lock even when the bucket is shared by event loops.
+ */
+final class TokenBucket {
+
+    private static final AtomicLongFieldUpdater<TokenBucket> TAT_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "tat");
+    private static final AtomicIntegerFieldUpdater<TokenBucket> REFS_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(TokenBucket.class, "refs");
+
+    /**
+     * nanoseconds per token
+     */
+    private final long interval;
+    /**
+     * how far the arrival time may run ahead of now, i.e. the burst
+     */
+    private final long tolerance;
+
+    private volatile long tat;
+    /**
+     * channels using the bucket, used by shared buckets to remove themselves
+     */
+    private volatile int refs;
+
+    /**
+     * @param rate  tokens per second
+     * @param burst tokens available at once
+     * @param now   {@link System#nanoTime} of the creation, the burst is available from then
+     */
+    TokenBucket(int rate, int burst, long now) {
+        this.interval = 1000000000L / rate;
+        this.tolerance = interval * Math.max(burst - 1, 0);
+        this.tat = now;
+    }
+
+    /**
+     * @return 0 if a token is taken, otherwise nanoseconds until one is available
+     */
+    long tryAcquire(long now) {
+        for (; ; ) {
+            long tat = this.tat;
+            long start = tat > now ? tat : now;
+            long wait = start - tolerance - now;
+            if (wait > 0) {
+                return wait;
+            }
+            if (TAT_UPDATER.compareAndSet(this, tat, start + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Give back a token taken by {@link #tryAcquire}, when the message is held by another bucket.
+     */
+    void refund() {
+        TAT_UPDATER.addAndGet(this, -interval);
+    }
+
+    int retain() {
+        return REFS_UPDATER.incrementAndGet(this);
+    }
+
+    int release() {
+        return REFS_UPDATER.decrementAndGet(this);
+    }
+}
@@ -30,6 +30,9 @@
 
 package com.linkedkeeper.tcp.constant;
 
+import com.linkedkeeper.tcp.connector.Session;
+import com.linkedkeeper.tcp.connector.tcp.codec.BodyCompression;
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
 import io.netty.util.AttributeKey;
 
 public class Constants {
@@ -43,6 +46,33 @@ public class Constants {
     public static final int NOTIFY_FAILURE = 0;
     public static final int NOTIFY_NO_SESSION = 2;
 
+    /**
+     * session attributes from the CONNECT message, indexed by the session manager
+     */
+    public static final String SESSION_APP_KEY = "appKey";
+    public static final String SESSION_PLATFORM = "platform";
+    public static final String SESSION_DEVICE_ID = "deviceId";
+
     public static final AttributeKey<String> SERVER_SESSION_HOOK = AttributeKey.valueOf("SERVER_SESSION_HOOK");
+    /**
+     * session bound to the channel, heartbeats reach the session without looking up the session manager
+     */
+    public static final AttributeKey<Session> SERVER_SESSION = AttributeKey.valueOf("SERVER_SESSION");
+    /**
+     * header of the CONNECT message without body, used to rebuild compact frames of the channel
+     */
+    public static final AttributeKey<MessageBuf.JMTransfer> SERVER_HEADER = AttributeKey.valueOf("SERVER_HEADER");
+    /**
+     * set once the client sends compact frames, the server then replies with compact frames too
+     */
+    public static final AttributeKey<Boolean> SERVER_COMPACT = AttributeKey.valueOf("SERVER_COMPACT");
+    /**
+     * body compression negotiated by CONNECT, bodies are written uncompressed if not set
+     */
+    public static final AttributeKey<BodyCompression> SERVER_COMPRESSION = AttributeKey.valueOf("SERVER_COMPRESSION");
+    /**
+     * handlers holding the reading of the channel paused, a bit per handler, only used by the event loop
+     */
+    public static final AttributeKey<Integer> SERVER_READ_PAUSE = AttributeKey.valueOf("SERVER_READ_PAUSE");
 
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.invoke;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Business executor between the codec and {@link ApiProxy}, keep slow business logic off the I/O threads.
+ * <p>
+ * It is made of serial lanes, each lane is a single thread with a bounded queue. Messages of the same
+ * key (the channel of a session) are always dispatched to the same lane, so they are invoked in order.
+ */
+public class InvokeExecutor {
+
+    private final static Logger logger = LoggerFactory.getLogger(InvokeExecutor.class);
+
+    public enum RejectPolicy {
+        /**
+         * throw RejectedExecutionException to the caller
+         */
+        ABORT,
+        /**
+         * drop the message
+         */
+        DISCARD,
+        /**
+         * invoke on the caller (I/O) thread, the message may overtake queued ones
+         */
+        CALLER_RUNS
+    }
+
+    private int lanes = Runtime.getRuntime().availableProcessors() * 2;
+    /**
+     * bounded queue size of each lane
+     */
+    private int queueCapacity = 1024;
+    private RejectPolicy rejectPolicy = RejectPolicy.ABORT;
+    private String threadName = "tcp-invoke";
+
+    private ThreadPoolExecutor[] executors = null;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public void init() {
+        if (lanes <= 0) {
+            throw new IllegalArgumentException("lanes must be positive: " + lanes);
+        }
+        ThreadFactory threadFactory = new DefaultThreadFactory(threadName, true);
+        RejectedExecutionHandler handler = new RejectHandler(rejectPolicy);
+
+        executors = new ThreadPoolExecutor[lanes];
+        for (int i = 0; i < lanes; i++) {
+            executors[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(queueCapacity), threadFactory, handler);
+        }
+        logger.info("InvokeExecutor start, lanes=" + lanes + ", queueCapacity=" + queueCapacity + ", rejectPolicy=" + rejectPolicy);
+    }
+
+    public void destroy() {
+        if (executors == null) {
+            return;
+        }
+        for (ThreadPoolExecutor executor : executors) {
+            executor.shutdown();
+        }
+        logger.info("InvokeExecutor shutdown, rejected count " + rejectedCount.get());
+    }
+
+    /**
+     * Execute the task on the lane of the key.
+     *
+     * @param key  tasks with the same key run serially
+     * @param task
+     * @return false if the lane is full and the task was discarded by {@link RejectPolicy#DISCARD}
+     */
+    public boolean execute(Object key, Runnable task) {
+        try {
+            executors[(key.hashCode() & Integer.MAX_VALUE) % executors.length].execute(task);
+            return true;
+        } catch (DiscardedException e) {
+            return false;
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public void setLanes(int lanes) {
+        this.lanes = lanes;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setRejectPolicy(RejectPolicy rejectPolicy) {
+        this.rejectPolicy = rejectPolicy;
+    }
+
+    public void setThreadName(String threadName) {
+        this.threadName = threadName;
+    }
+
+    private class RejectHandler implements RejectedExecutionHandler {
+
+        private final RejectPolicy policy;
+
+        RejectHandler(RejectPolicy policy) {
+            this.policy = policy;
+        }
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            rejectedCount.incrementAndGet();
+            switch (policy) {
+                case CALLER_RUNS:
+                    if (!executor.isShutdown()) {
+                        r.run();
+                    }
+                    break;
+                case DISCARD:
+                    logger.warn("InvokeExecutor lane is full, discard task.");
+                    throw new DiscardedException();
+                default:
+                    throw new RejectedExecutionException("InvokeExecutor lane is full, queueCapacity=" + queueCapacity);
+            }
+        }
+    }
+
+    /**
+     * Tells {@link #execute} that the task was discarded, never reaches the caller.
+     */
+    private static final class DiscardedException extends RejectedExecutionException {
+    }
+}
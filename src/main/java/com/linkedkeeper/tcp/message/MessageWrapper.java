@@ -37,6 +37,10 @@ public class MessageWrapper implements Serializable {
     private MessageProtocol protocol;
     private String sessionId;
     private Object body;
+    /**
+     * outbound priority, chosen by cmd if null
+     */
+    private Priority priority;
 
     private MessageWrapper() {
     }
@@ -47,6 +51,11 @@ public class MessageWrapper implements Serializable {
         this.body = body;
     }
 
+    public MessageWrapper(MessageProtocol protocol, String sessionId, Object body, Priority priority) {
+        this(protocol, sessionId, body);
+        this.priority = priority;
+    }
+
     public enum MessageProtocol {
         CONNECT, CLOSE, HEART_BEAT, SEND, RECEIVE, NOTIFY, REPLY, NO_CONNECT
     }
@@ -99,4 +108,12 @@ public class MessageWrapper implements Serializable {
         this.body = body;
     }
 
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
 }
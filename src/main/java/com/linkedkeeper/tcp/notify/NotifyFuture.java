@@ -30,15 +30,47 @@
 
 package com.linkedkeeper.tcp.notify;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Future of a notify, completed once by the reply (success), the timeout, a failure or a cancel.
+ * <p>
+ * Lock-free: the outcome is set by a single CAS, waiting threads and listeners are pushed on a Treiber stack
+ * which the completing thread swaps out once, then unparks the threads and invokes the listeners. Nodes of
+ * timed out waiters and removed listeners are unlinked at once.
+ */
 public class NotifyFuture<V> implements java.util.concurrent.Future<V> {
 
+    private final static Logger logger = LoggerFactory.getLogger(NotifyFuture.class);
+
+    public enum State {
+        PENDING, SUCCESS, FAILURE, TIMEOUT, CANCELLED
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<NotifyFuture, Outcome> OUTCOME_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(NotifyFuture.class, Outcome.class, "outcome");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<NotifyFuture, Node> WAITERS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(NotifyFuture.class, Node.class, "waiters");
+
+    /**
+     * head of the stack once the future is done, nothing is pushed any more
+     */
+    private static final Node DONE = new Node(null, null);
+
     private final int timeout;
 
-    private volatile Object result;
+    private volatile Outcome outcome;
 
-    private short waiters;
+    private volatile Node waiters;
 
     /**
      * Future生成时间
@@ -54,190 +86,236 @@ public class NotifyFuture<V> implements java.util.concurrent.Future<V> {
     }
 
     public boolean cancel(boolean mayInterruptIfRunning) {
-        Object result = this.result;
-        if (isDone0(result)) {
-            return false;
-        }
-        synchronized (this) {
-            // Allow only once
-            result = this.result;
-            if (isDone0(result)) {
-                return false;
-            }
-            if (hasWaiters()) {
-                notifyAll();
-            }
-        }
-        return true;
+        return complete(new Outcome(State.CANCELLED, null, new CancellationException()));
     }
 
     public boolean isCancelled() {
-        return false;
+        return getState() == State.CANCELLED;
     }
 
     public boolean isDone() {
-        return isDone0(result);
+        return outcome != null;
     }
 
-    public boolean isDone0(Object result) {
-        return result != null && (Boolean) result;
+    public State getState() {
+        Outcome outcome = this.outcome;
+        return outcome != null ? outcome.state : State.PENDING;
     }
 
     public V get() throws InterruptedException {
         return get(timeout, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * @return the result of the reply, null if the notify failed
+     * @throws InterruptedException if no reply came within timeout
+     */
     public V get(long timeout, TimeUnit unit) throws InterruptedException {
         timeout = unit.toMillis(timeout); // Turn to milliseconds
         long remainTime = timeout - (sentTime - genTime); // Residual time
         if (remainTime <= 0) { // There is no time to wait
-            if (isDone()) { // Directly to see if it has been returned
+            if (isDone() && !isTimeout()) { // Directly to see if it has been returned
                 return getNow();
             }
         } else { // Waiting for the rest of time
-            if (await(remainTime, TimeUnit.MILLISECONDS)) {
+            if (await(remainTime, TimeUnit.MILLISECONDS) && !isTimeout()) {
                 return getNow();
             }
         }
         throw new InterruptedException("wait reply timeout.");
     }
 
+    @SuppressWarnings("unchecked")
     public V getNow() {
-        Object result = this.result;
-        return (V) result;
+        Outcome outcome = this.outcome;
+        return outcome != null ? (V) outcome.value : null;
     }
 
     public boolean isSuccess() {
-        Object result = this.result;
-        if (result == null) {
-            return false;
-        }
-        return (Boolean) result;
+        return getState() == State.SUCCESS;
     }
 
-    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
-        return await0(unit.toNanos(timeout), true);
+    public boolean isTimeout() {
+        return getState() == State.TIMEOUT;
+    }
+
+    /**
+     * @return the cause of the failure, TimeoutException if no reply came in time, null if not failed
+     */
+    public Throwable cause() {
+        Outcome outcome = this.outcome;
+        return outcome != null ? outcome.cause : null;
     }
 
-    private boolean await0(long timeoutNanos, boolean interruptAble) throws InterruptedException {
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
         if (isDone()) {
             return true;
         }
+        long timeoutNanos = unit.toNanos(timeout);
         if (timeoutNanos <= 0) {
             return isDone();
         }
-        if (interruptAble && Thread.interrupted()) {
+        if (Thread.interrupted()) {
             throw new InterruptedException(toString());
         }
-
-        long startTime = System.nanoTime();
-        long waitTime = timeoutNanos;
-        boolean interrupted = false;
-
+        Node node = new Node(Thread.currentThread(), null);
+        if (!push(node)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
         try {
-            synchronized (this) {
+            for (; ; ) {
                 if (isDone()) {
                     return true;
                 }
+                long waitTime = deadline - System.nanoTime();
                 if (waitTime <= 0) {
                     return isDone();
                 }
-
-                incWaiters();
-                try {
-                    for (; ; ) {
-                        try {
-                            wait(waitTime / 1000000, (int) (waitTime % 1000000));
-                        } catch (InterruptedException e) {
-                            if (interruptAble) {
-                                throw e;
-                            } else {
-                                interrupted = true;
-                            }
-                        }
-                        if (isDone()) {
-                            return true;
-                        } else {
-                            waitTime = timeoutNanos - (System.nanoTime() - startTime);
-                            if (waitTime <= 0) {
-                                return isDone();
-                            }
-                        }
-                    }
-                } finally {
-                    decWaiters();
+                LockSupport.parkNanos(this, waitTime);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException(toString());
                 }
             }
         } finally {
-            if (interrupted) {
-                Thread.currentThread().interrupt();
+            node.thread = null;
+            if (!isDone()) {
+                unlinkDead();
             }
         }
     }
 
+    /**
+     * Add a listener invoked once the future completes, at once if it is already done.
+     */
+    public NotifyFuture<V> addListener(NotifyListener<V> listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+        if (!push(new Node(null, listener))) {
+            notifyListener(listener);
+        }
+        return this;
+    }
+
+    public NotifyFuture<V> removeListener(NotifyListener<V> listener) {
+        for (Node node = waiters; node != null && node != DONE; node = node.next) {
+            if (node.listener == listener) {
+                node.listener = null;
+                unlinkDead();
+                break;
+            }
+        }
+        return this;
+    }
+
     public NotifyFuture<V> setSuccess(V result) {
-        if (setSuccess0(result)) {
+        if (trySuccess(result)) {
             return this;
         }
         throw new IllegalStateException("complete already: " + this);
     }
 
-    private boolean setSuccess0(V result) {
-        if (isDone()) {
-            return false;
-        }
-        synchronized (this) {
-            // Allow only once
-            if (isDone()) {
-                return false;
-            }
-            if (this.result == null) {
-                this.result = result;
-            }
-            if (hasWaiters()) {
-                notifyAll();
-            }
-        }
-        return true;
+    /**
+     * @return false if the future is already done
+     */
+    public boolean trySuccess(V result) {
+        return complete(new Outcome(State.SUCCESS, result, null));
     }
 
     public NotifyFuture<V> setFailure(Throwable cause) {
-        if (setFailure0(cause)) {
+        if (tryFailure(cause)) {
             return this;
         }
         throw new IllegalStateException("complete already: " + this, cause);
     }
 
-    private boolean setFailure0(Throwable cause) {
-        if (isDone()) {
+    /**
+     * A TimeoutException completes the future in the TIMEOUT state.
+     */
+    public boolean tryFailure(Throwable cause) {
+        if (cause == null) {
+            throw new NullPointerException("cause");
+        }
+        return complete(new Outcome(cause instanceof TimeoutException ? State.TIMEOUT : State.FAILURE, null, cause));
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean complete(Outcome outcome) {
+        if (!OUTCOME_UPDATER.compareAndSet(this, null, outcome)) {
             return false;
         }
-        synchronized (this) {
-            // Allow only once
-            if (isDone()) {
-                return false;
+        Node node = WAITERS_UPDATER.getAndSet(this, DONE);
+        for (; node != null && node != DONE; node = node.next) {
+            Thread thread = node.thread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
             }
-            result = false;
-            if (hasWaiters()) {
-                notifyAll();
+            NotifyListener<V> listener = node.listener;
+            if (listener != null) {
+                notifyListener(listener);
             }
         }
         return true;
     }
 
-    private boolean hasWaiters() {
-        return waiters > 0;
+    /**
+     * @return false if the future is done, the node is not pushed then
+     */
+    private boolean push(Node node) {
+        for (; ; ) {
+            Node head = waiters;
+            if (head == DONE) {
+                return false;
+            }
+            node.next = head;
+            if (WAITERS_UPDATER.compareAndSet(this, head, node)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unlink the nodes of timed out waiters and removed listeners, so a future that never completes does not
+     * grow with every timed wait. Restarts when it races another unlink, like FutureTask.removeWaiter.
+     */
+    private void unlinkDead() {
+        retry:
+        for (; ; ) {
+            for (Node pred = null, node = waiters, next; node != null && node != DONE; node = next) {
+                next = node.next;
+                if (!node.isDead()) {
+                    pred = node;
+                } else if (pred != null) {
+                    pred.next = next;
+                    if (pred.isDead()) {
+                        continue retry;
+                    }
+                } else if (!WAITERS_UPDATER.compareAndSet(this, node, next)) {
+                    continue retry;
+                }
+            }
+            return;
+        }
     }
 
-    private void incWaiters() {
-        if (waiters == Short.MAX_VALUE) {
-            throw new IllegalStateException("too many waiters:" + this);
+    /**
+     * @return nodes on the stack, 0 once done
+     */
+    int waiterCount() {
+        int count = 0;
+        for (Node node = waiters; node != null && node != DONE; node = node.next) {
+            count++;
         }
-        waiters++;
+        return count;
     }
 
-    private void decWaiters() {
-        waiters--;
+    private void notifyListener(NotifyListener<V> listener) {
+        try {
+            listener.operationComplete(this);
+        } catch (Throwable t) {
+            logger.warn("An exception was thrown by " + listener.getClass().getName() + ".operationComplete()", t);
+        }
     }
 
     public int getTimeout() {
@@ -252,4 +330,39 @@ public class NotifyFuture<V> implements java.util.concurrent.Future<V> {
     public void setSentTime(long sentTime) {
         this.sentTime = sentTime;
     }
+
+    @Override
+    public String toString() {
+        return "NotifyFuture{state=" + getState() + ", timeout=" + timeout + "}";
+    }
+
+    private static final class Outcome {
+
+        private final State state;
+        private final Object value;
+        private final Throwable cause;
+
+        Outcome(State state, Object value, Throwable cause) {
+            this.state = state;
+            this.value = value;
+            this.cause = cause;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final class Node {
+
+        private volatile Thread thread;
+        private volatile NotifyListener listener;
+        private volatile Node next;
+
+        Node(Thread thread, NotifyListener listener) {
+            this.thread = thread;
+            this.listener = listener;
+        }
+
+        boolean isDead() {
+            return thread == null && listener == null;
+        }
+    }
 }
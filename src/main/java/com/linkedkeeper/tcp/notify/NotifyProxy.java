@@ -30,16 +30,22 @@
 
 package com.linkedkeeper.tcp.notify;
 
+import com.linkedkeeper.tcp.connector.BroadcastResult;
+import com.linkedkeeper.tcp.connector.SessionFilter;
 import com.linkedkeeper.tcp.connector.tcp.TcpConnector;
 import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
 import com.linkedkeeper.tcp.constant.Constants;
+import com.linkedkeeper.tcp.exception.LostConnectException;
+import com.linkedkeeper.tcp.exception.PushException;
 import com.linkedkeeper.tcp.message.MessageWrapper;
 import com.linkedkeeper.tcp.utils.ByteUtils;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
 public class NotifyProxy {
@@ -52,7 +58,11 @@ public class NotifyProxy {
         this.tcpConnector = tcpConnector;
     }
 
-    private final ConcurrentHashMap<Long, NotifyFuture> futureMap = new ConcurrentHashMap<Long, NotifyFuture>();
+    private PendingNotifyTable pendingTable = new PendingNotifyTable();
+
+    public void destroy() {
+        pendingTable.stop();
+    }
 
     public int notify(long seq, MessageWrapper wrapper, int timeout) throws Exception {
         try {
@@ -60,24 +70,87 @@ public class NotifyProxy {
             if (future == null) {
                 return Constants.NOTIFY_NO_SESSION;
             } else {
-                return future.get(timeout, TimeUnit.MILLISECONDS) ? Constants.NOTIFY_SUCCESS : Constants.NOTIFY_FAILURE;
+                future.get(timeout, TimeUnit.MILLISECONDS);
+                return future.isSuccess() && Boolean.TRUE.equals(future.getNow()) ? Constants.NOTIFY_SUCCESS : Constants.NOTIFY_FAILURE;
             }
         } catch (Exception e) {
             throw e;
         }
     }
 
+    /**
+     * Send the notify without blocking, the future completes on the reply of the client, fails with a
+     * TimeoutException if no reply comes within timeout, or with the cause of the send failure.
+     * No session on this machine fails the future with a LostConnectException.
+     */
+    public NotifyFuture<Boolean> notifyAsync(long seq, MessageWrapper wrapper, int timeout) {
+        try {
+            NotifyFuture<Boolean> future = doSendAsync(seq, wrapper, timeout);
+            if (future == null) {
+                future = new NotifyFuture<Boolean>(timeout);
+                future.setFailure(new LostConnectException("session " + wrapper.getSessionId() + " not exist."));
+            }
+            return future;
+        } catch (Exception e) {
+            NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(timeout);
+            future.setFailure(e);
+            return future;
+        }
+    }
+
+    public NotifyFuture<Boolean> notifyAsync(long seq, MessageWrapper wrapper, int timeout, NotifyListener<Boolean> listener) {
+        return notifyAsync(seq, wrapper, timeout).addListener(listener);
+    }
+
+    /**
+     * Notify many sessions with the same message, encoded once. Replies of broadcasts are not awaited,
+     * the result reports the writes.
+     */
+    public BroadcastResult broadcast(Collection<String> sessionIds, MessageWrapper wrapper) throws Exception {
+        if (wrapper == null) {
+            throw new Exception("wrapper cannot be null.");
+        }
+        BroadcastResult result = tcpConnector.broadcast(sessionIds, wrapper.getBody());
+        logger.info("broadcast to " + sessionIds.size() + " sessions, targets -> " + result.getTargets() + ", missed -> " + result.getMissed());
+        return result;
+    }
+
+    public BroadcastResult broadcast(SessionFilter filter, MessageWrapper wrapper) throws Exception {
+        if (wrapper == null) {
+            throw new Exception("wrapper cannot be null.");
+        }
+        BroadcastResult result = tcpConnector.broadcast(filter, wrapper.getBody());
+        logger.info("broadcast by filter, targets -> " + result.getTargets() + ", missed -> " + result.getMissed());
+        return result;
+    }
+
+    /**
+     * Notify the sessions indexed under the value of the attribute, e.g. appKey or deviceId.
+     */
+    public BroadcastResult broadcast(String attribute, Object value, MessageWrapper wrapper) throws Exception {
+        if (wrapper == null) {
+            throw new Exception("wrapper cannot be null.");
+        }
+        BroadcastResult result = tcpConnector.broadcast(attribute, value, wrapper.getBody());
+        logger.info("broadcast to " + attribute + " = " + value + ", targets -> " + result.getTargets() + ", missed -> " + result.getMissed());
+        return result;
+    }
+
     public void reply(MessageBuf.JMTransfer message) throws Exception {
+        logger.info("reply seq -> " + message.getSeq() + ", message -> " + ByteUtils.bytesToHexString(message.toByteArray()));
+        reply(message.getSeq());
+    }
+
+    public void reply(long seq) throws Exception {
         try {
-            long seq = message.getSeq();
-            logger.info("reply seq -> " + seq + ", message -> " + ByteUtils.bytesToHexString(message.toByteArray()));
-            final NotifyFuture future = this.futureMap.get(seq);
-            if (future != null) {
-                future.setSuccess(true);
-                futureMap.remove(seq);
+            final NotifyFuture future = pendingTable.remove(seq);
+            if (future == null) {
+                logger.info("reply seq -> " + seq + " expire.");
+            } else if (future.trySuccess(true)) {
                 logger.info("reply seq -> " + seq + " success.");
             } else {
-                logger.info("reply seq -> " + seq + " expire.");
+                // cancelled or failed by the write meanwhile
+                logger.info("reply seq -> " + seq + " already completed, state -> " + future.getState());
             }
         } catch (Exception e) {
             throw e;
@@ -95,10 +168,18 @@ public class NotifyProxy {
         if (tcpConnector.exist(sessionId)) {
             // start.
             final NotifyFuture future = new NotifyFuture(timeout);
-            this.futureMap.put(seq, future);
+            pendingTable.put(seq, future, timeout);
+            future.addListener(new CancelListener(seq));
 
             logger.info("notify seq -> " + seq + ", sessionId -> " + sessionId);
-            tcpConnector.send(sessionId, wrapper.getBody());
+            try {
+                // a failed write fails the notify at once instead of waiting for its timeout
+                tcpConnector.sendAsync(sessionId, wrapper.getBody(), wrapper.getPriority()).addListener(new WriteListener(seq, future));
+            } catch (Exception e) {
+                pendingTable.remove(seq, future);
+                future.tryFailure(e);
+                throw e;
+            }
 
             future.setSentTime(System.currentTimeMillis()); // 置为已发送
             return future;
@@ -107,4 +188,55 @@ public class NotifyProxy {
             return null;
         }
     }
+
+    public PendingNotifyTable getPendingTable() {
+        return pendingTable;
+    }
+
+    /**
+     * Replace the default table, e.g. to change its concurrency or timeout precision.
+     */
+    public void setPendingTable(PendingNotifyTable pendingTable) {
+        PendingNotifyTable old = this.pendingTable;
+        this.pendingTable = pendingTable;
+        if (old != null && old != pendingTable) {
+            old.stop();
+        }
+    }
+
+    /**
+     * A cancelled notify frees its slot at once instead of waiting for its reply or timeout.
+     */
+    private class CancelListener implements NotifyListener {
+
+        private final long seq;
+
+        CancelListener(long seq) {
+            this.seq = seq;
+        }
+
+        public void operationComplete(NotifyFuture future) throws Exception {
+            if (future.isCancelled() && pendingTable.remove(seq, future)) {
+                logger.info("notify seq -> " + seq + " cancelled.");
+            }
+        }
+    }
+
+    private class WriteListener implements GenericFutureListener<Future<Void>> {
+
+        private final long seq;
+        private final NotifyFuture notifyFuture;
+
+        WriteListener(long seq, NotifyFuture notifyFuture) {
+            this.seq = seq;
+            this.notifyFuture = notifyFuture;
+        }
+
+        public void operationComplete(Future<Void> future) throws Exception {
+            if (!future.isSuccess() && pendingTable.remove(seq, notifyFuture)) {
+                logger.info("notify seq -> " + seq + " write failed.");
+                notifyFuture.tryFailure(new PushException(future.cause()));
+            }
+        }
+    }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.notify;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Notify futures waiting for the reply of the client, keyed by seq.
+ * <p>
+ * The table is striped into segments of primitive long maps, each guarded by its own lock. Every future
+ * has a timeout on a hashed timing wheel, a reply cancels it, otherwise it fails the future and frees the
+ * slot, so unanswered notifies never stay in the table.
+ */
+public class PendingNotifyTable {
+
+    private final static Logger logger = LoggerFactory.getLogger(PendingNotifyTable.class);
+
+    private final LongObjectHashMap<Pending>[] segments;
+    private final int mask;
+
+    private final Timer timer;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * interval in seconds of the gauge log, and window of the timeout rate
+     */
+    private final int statsInterval;
+    private long lastReplies;
+    private long lastTimeouts;
+    private volatile double timeoutRate;
+
+    public PendingNotifyTable() {
+        this(16, 100, 60);
+    }
+
+    /**
+     * @param concurrency   number of segments, rounded up to a power of two
+     * @param tickDuration  precision of the timeouts in milliseconds
+     * @param statsInterval interval in seconds of the gauge log, 0 is disabled
+     */
+    public PendingNotifyTable(int concurrency, long tickDuration, int statsInterval) {
+        this(concurrency, new HashedWheelTimer(new DefaultThreadFactory("pendingNotifyTable", true),
+                tickDuration, TimeUnit.MILLISECONDS, 512), statsInterval);
+    }
+
+    /**
+     * @param timer runs the timeouts, stopped by {@link #stop}
+     */
+    @SuppressWarnings("unchecked")
+    PendingNotifyTable(int concurrency, Timer timer, int statsInterval) {
+        int size = 1;
+        while (size < concurrency) {
+            size <<= 1;
+        }
+        this.segments = new LongObjectHashMap[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = new LongObjectHashMap<Pending>();
+        }
+        this.mask = size - 1;
+        this.timer = timer;
+        this.statsInterval = statsInterval;
+        if (statsInterval > 0) {
+            timer.newTimeout(new StatsTask(), statsInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Add the future of seq, it fails with a TimeoutException if no reply comes within timeout. A future
+     * still pending with the same seq is failed and replaced.
+     */
+    public void put(long seq, NotifyFuture future, long timeout) {
+        Pending entry = new Pending(seq, future);
+        LongObjectHashMap<Pending> segment = segmentOf(seq);
+        Pending old;
+        synchronized (segment) {
+            old = segment.put(seq, entry);
+            // scheduled under the lock, so a concurrent reply always finds the timeout to cancel
+            entry.timeout = timer.newTimeout(entry, timeout, TimeUnit.MILLISECONDS);
+        }
+        if (old != null) {
+            old.timeout.cancel();
+            old.future.tryFailure(new IllegalStateException("seq " + seq + " reused by a new notify."));
+        } else {
+            pending.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove the future of seq on its reply.
+     *
+     * @return the future, or null if it has already expired
+     */
+    public NotifyFuture remove(long seq) {
+        LongObjectHashMap<Pending> segment = segmentOf(seq);
+        Pending entry;
+        synchronized (segment) {
+            entry = segment.remove(seq);
+        }
+        if (entry == null) {
+            return null;
+        }
+        entry.timeout.cancel();
+        pending.decrementAndGet();
+        replies.incrementAndGet();
+        return entry.future;
+    }
+
+    /**
+     * Remove the entry of seq only if it still holds the future, e.g. when the notify could not be sent.
+     */
+    public boolean remove(long seq, NotifyFuture future) {
+        LongObjectHashMap<Pending> segment = segmentOf(seq);
+        Pending entry;
+        synchronized (segment) {
+            entry = segment.get(seq);
+            if (entry == null || entry.future != future) {
+                return false;
+            }
+            segment.remove(seq);
+        }
+        entry.timeout.cancel();
+        pending.decrementAndGet();
+        return true;
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    /**
+     * @return futures waiting for their reply
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    public long getReplyCount() {
+        return replies.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return timeouts / (replies + timeouts) of the last stats interval
+     */
+    public double getTimeoutRate() {
+        return timeoutRate;
+    }
+
+    private LongObjectHashMap<Pending> segmentOf(long seq) {
+        int hash = (int) (seq ^ (seq >>> 32));
+        hash ^= hash >>> 16;
+        return segments[hash & mask];
+    }
+
+    private final class Pending implements TimerTask {
+
+        private final long seq;
+        private final NotifyFuture future;
+        private Timeout timeout;
+
+        Pending(long seq, NotifyFuture future) {
+            this.seq = seq;
+            this.future = future;
+        }
+
+        public void run(Timeout timeout) throws Exception {
+            LongObjectHashMap<Pending> segment = segmentOf(seq);
+            synchronized (segment) {
+                // replied or replaced meanwhile
+                if (segment.get(seq) != this) {
+                    return;
+                }
+                segment.remove(seq);
+            }
+            pending.decrementAndGet();
+            timeouts.incrementAndGet();
+            future.tryFailure(new TimeoutException("notify seq " + seq + " reply timeout."));
+        }
+    }
+
+    private final class StatsTask implements TimerTask {
+
+        public void run(Timeout timeout) throws Exception {
+            long replies = getReplyCount();
+            long timeouts = getTimeoutCount();
+            long completed = (replies - lastReplies) + (timeouts - lastTimeouts);
+            timeoutRate = completed > 0 ? (double) (timeouts - lastTimeouts) / completed : 0;
+            lastReplies = replies;
+            lastTimeouts = timeouts;
+            logger.info("pending notify -> " + getPendingCount() + ", timeout rate -> " + timeoutRate
+                    + ", replies -> " + replies + ", timeouts -> " + timeouts);
+            timer.newTimeout(this, statsInterval, TimeUnit.SECONDS);
+        }
+    }
+}
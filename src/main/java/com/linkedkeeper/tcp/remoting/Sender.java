@@ -30,12 +30,29 @@
 
 package com.linkedkeeper.tcp.remoting;
 
+import com.linkedkeeper.tcp.connector.BroadcastResult;
+import com.linkedkeeper.tcp.connector.SessionFilter;
 import com.linkedkeeper.tcp.message.MessageWrapper;
+import io.netty.util.concurrent.Future;
+
+import java.util.Collection;
 
 public interface Sender {
 
     void sendMessage(MessageWrapper wrapper) throws RuntimeException;
 
+    /**
+     * @return future of the write, fails with the cause of the write failure
+     */
+    Future<Void> sendMessageAsync(MessageWrapper wrapper) throws RuntimeException;
+
     boolean existSession(MessageWrapper wrapper) throws RuntimeException;
 
+    /**
+     * Send the body of the wrapper to all the sessions, the sessionId of the wrapper is ignored.
+     */
+    BroadcastResult broadcast(Collection<String> sessionIds, MessageWrapper wrapper) throws RuntimeException;
+
+    BroadcastResult broadcast(SessionFilter filter, MessageWrapper wrapper) throws RuntimeException;
+
 }
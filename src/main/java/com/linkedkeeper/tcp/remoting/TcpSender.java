@@ -30,11 +30,16 @@
 
 package com.linkedkeeper.tcp.remoting;
 
+import com.linkedkeeper.tcp.connector.BroadcastResult;
 import com.linkedkeeper.tcp.connector.Connector;
+import com.linkedkeeper.tcp.connector.SessionFilter;
 import com.linkedkeeper.tcp.message.MessageWrapper;
+import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+
 public class TcpSender implements Sender {
 
     private final static Logger logger = LoggerFactory.getLogger(TcpSender.class);
@@ -54,6 +59,34 @@ public class TcpSender implements Sender {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    public Future<Void> sendMessageAsync(MessageWrapper wrapper) throws RuntimeException {
+        try {
+            return tcpConnector.sendAsync(wrapper.getSessionId(), wrapper.getBody(), wrapper.getPriority());
+        } catch (Exception e) {
+            logger.error("TcpSender sendMessageAsync occur Exception!", e);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public BroadcastResult broadcast(Collection<String> sessionIds, MessageWrapper wrapper) throws RuntimeException {
+        try {
+            return tcpConnector.broadcast(sessionIds, wrapper.getBody());
+        } catch (Exception e) {
+            logger.error("TcpSender broadcast occur Exception!", e);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public BroadcastResult broadcast(SessionFilter filter, MessageWrapper wrapper) throws RuntimeException {
+        try {
+            return tcpConnector.broadcast(filter, wrapper.getBody());
+        } catch (Exception e) {
+            logger.error("TcpSender broadcast occur Exception!", e);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     public boolean existSession(MessageWrapper wrapper) throws RuntimeException {
         try {
             return tcpConnector.exist(wrapper.getSessionId());
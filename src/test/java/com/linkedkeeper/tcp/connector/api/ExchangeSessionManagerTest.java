@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.api;
+
+import com.linkedkeeper.tcp.connector.Session;
+import com.linkedkeeper.tcp.connector.api.listener.SessionListener;
+import com.linkedkeeper.tcp.connector.tcp.TcpSessionManager;
+import com.linkedkeeper.tcp.constant.Constants;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ExchangeSessionManagerTest {
+
+    private static TcpSessionManager manager() {
+        TcpSessionManager manager = new TcpSessionManager();
+        manager.setSessionListeners(Collections.<SessionListener>emptyList());
+        return manager;
+    }
+
+    private static Session create(TcpSessionManager manager, String sessionId) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        Session session = manager.createSession(sessionId, channel.pipeline().firstContext());
+        session.setAttribute(Constants.SESSION_APP_KEY, "app");
+        return session;
+    }
+
+    @Test
+    public void replacedSessionIsClosed() {
+        TcpSessionManager manager = manager();
+        Session old = create(manager, "s1");
+        manager.addSession(old);
+        Session current = create(manager, "s1");
+        manager.addSession(current);
+
+        assertFalse(old.isValid());
+        assertTrue(current.isValid());
+        assertSame(current, manager.getSession("s1"));
+        assertEquals(1, manager.getSessionCount());
+    }
+
+    @Test
+    public void addingTheSameSessionAgainKeepsIt() {
+        TcpSessionManager manager = manager();
+        Session session = create(manager, "s1");
+        manager.addSession(session);
+        manager.addSession(session);
+
+        assertTrue(session.isValid());
+        assertSame(session, manager.getSession("s1"));
+        assertEquals(1, manager.getSessionCount(Constants.SESSION_APP_KEY, "app"));
+    }
+
+    @Test
+    public void staleRemoveKeepsTheNewSession() {
+        TcpSessionManager manager = manager();
+        Session old = create(manager, "s1");
+        manager.addSession(old);
+        Session current = create(manager, "s1");
+        manager.addSession(current);
+
+        // e.g. the close of the old channel, after its replacement
+        manager.removeSession(old);
+        assertSame(current, manager.getSession("s1"));
+        assertEquals(1, manager.getSessionCount(Constants.SESSION_APP_KEY, "app"));
+
+        manager.removeSession(current);
+        assertNull(manager.getSession("s1"));
+        assertEquals(0, manager.getSessionCount());
+        assertEquals(0, manager.getSessionCount(Constants.SESSION_APP_KEY, "app"));
+    }
+
+    @Test
+    public void concurrentAddAndRemoveOfOneIdStayConsistent() throws Exception {
+        final TcpSessionManager manager = manager();
+        final Queue<Session> created = new ConcurrentLinkedQueue<Session>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final boolean closing = t % 2 == 0;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 200; i++) {
+                        Session session = create(manager, "s1");
+                        created.add(session);
+                        manager.addSession(session);
+                        if (closing) {
+                            session.close();
+                        } else {
+                            manager.removeSession(session);
+                        }
+                        if (i % 3 == 0) {
+                            manager.addSession(create(manager, "s1"));
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Session current = manager.getSession("s1");
+        if (current == null) {
+            assertEquals(0, manager.getSessionCount());
+            assertEquals(0, manager.getSessionCount(Constants.SESSION_APP_KEY, "app"));
+        } else {
+            assertTrue(current.isValid());
+            assertEquals(1, manager.getSessionCount());
+            assertEquals(1, manager.getSessionCount(Constants.SESSION_APP_KEY, "app"));
+            assertTrue(manager.getSessions(Constants.SESSION_APP_KEY, "app").contains(current));
+        }
+        for (Session session : created) {
+            assertTrue(session == current || !manager.getSessions(Constants.SESSION_APP_KEY, "app").contains(session));
+        }
+    }
+}
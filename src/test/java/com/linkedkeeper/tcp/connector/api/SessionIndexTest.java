@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.api;
+
+import com.linkedkeeper.tcp.connector.Session;
+import com.linkedkeeper.tcp.connector.api.listener.SessionListener;
+import com.linkedkeeper.tcp.connector.tcp.TcpSessionManager;
+import com.linkedkeeper.tcp.constant.Constants;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionIndexTest {
+
+    private static ExchangeSession session(String sessionId) {
+        ExchangeSession session = new ExchangeSession();
+        session.setSessionId(sessionId);
+        session.setValid(true);
+        return session;
+    }
+
+    private static TcpSessionManager manager() {
+        TcpSessionManager manager = new TcpSessionManager();
+        manager.setSessionListeners(Collections.<SessionListener>emptyList());
+        return manager;
+    }
+
+    private static Session create(TcpSessionManager manager, String sessionId, String appKey) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        Session session = manager.createSession(sessionId, channel.pipeline().firstContext());
+        session.setAttribute(Constants.SESSION_APP_KEY, appKey);
+        return session;
+    }
+
+    @Test
+    public void movedSessionLeavesNoEmptyGroup() {
+        SessionIndex index = new SessionIndex(Constants.SESSION_DEVICE_ID);
+        Session a = session("a");
+        Session b = session("b");
+        index.index(a, "d1");
+        index.index(b, "d1");
+        assertEquals(2, index.size("d1"));
+
+        index.index(a, "d2");
+        assertEquals(1, index.size("d1"));
+        assertEquals(1, index.size("d2"));
+        assertEquals(2, index.groupCount());
+
+        index.unindex(b);
+        index.index(a, null);
+        assertEquals(0, index.size("d1"));
+        assertEquals(0, index.size("d2"));
+        assertEquals(0, index.groupCount());
+    }
+
+    @Test
+    public void lookupIsLiveAndReadOnly() {
+        SessionIndex index = new SessionIndex(Constants.SESSION_APP_KEY);
+        Session a = session("a");
+        Session b = session("b");
+        index.index(a, "app");
+        Collection<Session> sessions = index.get("app");
+        index.index(b, "app");
+        assertEquals(2, sessions.size());
+        try {
+            sessions.clear();
+            fail("cleared a lookup");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertTrue(index.get("other").isEmpty());
+        assertTrue(index.get(null).isEmpty());
+    }
+
+    @Test
+    public void concurrentJoinAndLeaveKeepsGroupsConsistent() throws Exception {
+        final SessionIndex index = new SessionIndex(Constants.SESSION_APP_KEY);
+        int threads = 8;
+        final int rounds = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final Session session = session("s" + t);
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < rounds; i++) {
+                        index.index(session, "app");
+                        index.index(session, "app-" + (i % 3));
+                        index.unindex(session);
+                    }
+                    index.index(session, "app");
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(threads, index.size("app"));
+        assertEquals(1, index.groupCount());
+    }
+
+    @Test
+    public void managerIndexesManagedSessionsOnly() {
+        TcpSessionManager manager = manager();
+        Session session = create(manager, "s1", "app");
+        // not added yet
+        assertEquals(0, manager.getSessionCount(Constants.SESSION_APP_KEY, "app"));
+
+        manager.addSession(session);
+        assertEquals(1, manager.getSessionCount(Constants.SESSION_APP_KEY, "app"));
+
+        session.setAttribute(Constants.SESSION_APP_KEY, "other");
+        assertEquals(0, manager.getSessionCount(Constants.SESSION_APP_KEY, "app"));
+        assertTrue(manager.getSessions(Constants.SESSION_APP_KEY, "other").contains(session));
+
+        session.close();
+        assertEquals(0, manager.getSessionCount(Constants.SESSION_APP_KEY, "other"));
+        assertFalse(session.isValid());
+    }
+
+    @Test
+    public void replacedSessionIsUnindexed() {
+        TcpSessionManager manager = manager();
+        Session old = create(manager, "s1", "app");
+        manager.addSession(old);
+        Session current = create(manager, "s1", "app");
+        manager.addSession(current);
+
+        Collection<Session> sessions = manager.getSessions(Constants.SESSION_APP_KEY, "app");
+        assertEquals(1, sessions.size());
+        assertTrue(sessions.contains(current));
+        assertFalse(old.isValid());
+    }
+
+    @Test
+    public void removedSessionIsNotIndexedAgain() {
+        TcpSessionManager manager = manager();
+        Session session = create(manager, "s1", "app");
+        manager.addSession(session);
+        manager.removeSession("s1");
+        assertEquals(0, manager.getSessionCount(Constants.SESSION_APP_KEY, "app"));
+
+        // still valid, but no longer managed
+        session.setAttribute(Constants.SESSION_APP_KEY, "other");
+        assertEquals(0, manager.getSessionCount(Constants.SESSION_APP_KEY, "other"));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.tcp;
+
+import com.linkedkeeper.tcp.connector.Session;
+import com.linkedkeeper.tcp.connector.api.listener.SessionListener;
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
+import com.linkedkeeper.tcp.connector.tcp.config.BackpressurePolicy;
+import com.linkedkeeper.tcp.connector.tcp.config.TcpConnectionConfig;
+import com.linkedkeeper.tcp.data.Protocol;
+import com.linkedkeeper.tcp.exception.BackpressureException;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.Future;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TcpConnectorTest {
+
+    @Test
+    public void droppedMessagesKeepTheSessionOpen() throws Exception {
+        TcpConnectionConfig config = new TcpConnectionConfig();
+        config.setBackpressurePolicy(BackpressurePolicy.DROP_OLDEST);
+        config.setMaxQueuedMessages(2);
+        TcpSessionManager manager = new TcpSessionManager();
+        manager.setSessionListeners(Collections.<SessionListener>emptyList());
+        manager.setConnectionConfig(config);
+        TcpConnector connector = new TcpConnector();
+        connector.setTcpSessionManager(manager);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(256, 512));
+        Session session = manager.createSession("s1", channel.pipeline().firstContext());
+        manager.addSession(session);
+        // an unflushed write keeps the channel above the high mark
+        channel.write(Unpooled.wrappedBuffer(new byte[1024]));
+        assertFalse(channel.isWritable());
+
+        MessageBuf.JMTransfer message = Protocol.generateHeartbeat().build();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(connector.sendAsync("s1", message));
+        }
+        channel.runPendingTasks();
+
+        assertTrue(futures.get(0).cause() instanceof BackpressureException);
+        assertTrue(futures.get(1).cause() instanceof BackpressureException);
+        assertFalse(futures.get(2).isDone());
+        assertFalse(futures.get(3).isDone());
+        assertTrue(channel.isOpen());
+        assertTrue(session.isValid());
+        assertSame(session, manager.getSession("s1"));
+
+        // the queue is written once the channel drains
+        channel.flush();
+        ((TcpConnection) session.getConnection()).writabilityChanged();
+        assertTrue(futures.get(2).isSuccess());
+        assertTrue(futures.get(3).isSuccess());
+        channel.finishAndReleaseAll();
+    }
+}
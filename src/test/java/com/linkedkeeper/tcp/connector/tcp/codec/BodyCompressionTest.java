@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.tcp.codec;
+
+import com.google.protobuf.ByteString;
+import com.linkedkeeper.tcp.data.Protocol;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BodyCompressionTest {
+
+    private static final ByteBufAllocator ALLOC = ByteBufAllocator.DEFAULT;
+
+    private static ByteString body(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append("{\"key\":\"value\"},");
+        }
+        return ByteString.copyFromUtf8(sb.substring(0, size));
+    }
+
+    private static MessageBuf.JMTransfer message(ByteString body) {
+        return Protocol.generateHeader(300).setBody(body).build();
+    }
+
+    @Test
+    public void roundTripOfEachCodec() {
+        ByteString body = body(10000);
+        for (BodyCompression compression : BodyCompression.values()) {
+            ByteString compressed = compression.compress(ALLOC, body);
+            assertTrue(compression + " did not shrink the body", compressed.size() < body.size());
+            assertEquals(body, compression.decompress(ALLOC, compressed, body.size()));
+        }
+    }
+
+    @Test
+    public void decompressBeyondMaxSizeIsCorrupted() {
+        ByteString body = body(10000);
+        for (BodyCompression compression : BodyCompression.values()) {
+            ByteString compressed = compression.compress(ALLOC, body);
+            try {
+                compression.decompress(ALLOC, compressed, body.size() - 1);
+                fail(compression + " decompressed beyond its limit");
+            } catch (CorruptedFrameException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void truncatedBodyIsCorrupted() {
+        ByteString body = body(10000);
+        for (BodyCompression compression : BodyCompression.values()) {
+            ByteString compressed = compression.compress(ALLOC, body);
+            try {
+                compression.decompress(ALLOC, compressed.substring(0, compressed.size() / 2), body.size());
+                fail(compression + " decompressed a truncated body");
+            } catch (CorruptedFrameException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void messageBelowThresholdIsKept() {
+        MessageBuf.JMTransfer message = message(body(100));
+        assertSame(message, BodyCompression.DEFLATE.compress(ALLOC, message, 1024));
+    }
+
+    @Test
+    public void compressedMessageIsFlagged() {
+        MessageBuf.JMTransfer message = message(body(4096));
+        MessageBuf.JMTransferOrBuilder compressed = BodyCompression.SNAPPY.compress(ALLOC, message, 1024);
+        assertEquals(1 | BodyCompression.FLAG_COMPRESSED | BodyCompression.SNAPPY.getBit(), compressed.getFlag());
+        assertSame(BodyCompression.SNAPPY, BodyCompression.of(compressed.getFlag()));
+        assertEquals(1, BodyCompression.clearFlag(compressed.getFlag()));
+        assertEquals(message.getBody(), BodyCompression.SNAPPY.decompress(ALLOC, compressed.getBody(), 4096));
+        // the original message is untouched
+        assertEquals(1, message.getFlag());
+    }
+
+    @Test
+    public void sharedBuilderIsNotChanged() {
+        MessageBuf.JMTransfer.Builder builder = message(body(4096)).toBuilder();
+        BodyCompression.DEFLATE.compress(ALLOC, builder, 1024);
+        assertEquals(1, builder.getFlag());
+        assertEquals(body(4096), builder.getBody());
+    }
+
+    @Test
+    public void negotiatePicksFirstPreferredCodec() {
+        int flag = BodyCompression.DEFLATE.getBit() | BodyCompression.SNAPPY.getBit();
+        assertSame(BodyCompression.SNAPPY,
+                BodyCompression.negotiate(Arrays.asList(BodyCompression.SNAPPY, BodyCompression.DEFLATE), flag));
+        assertSame(BodyCompression.DEFLATE,
+                BodyCompression.negotiate(Collections.singletonList(BodyCompression.DEFLATE), flag));
+        assertNull(BodyCompression.negotiate(Collections.singletonList(BodyCompression.SNAPPY),
+                BodyCompression.DEFLATE.getBit()));
+        assertNull(BodyCompression.negotiate(null, flag));
+        assertNull(BodyCompression.negotiate(Arrays.asList(BodyCompression.values()), flag | BodyCompression.FLAG_COMPRESSED));
+    }
+
+    @Test
+    public void uncompressedFlagHasNoCodec() {
+        assertNull(BodyCompression.of(BodyCompression.DEFLATE.getBit()));
+        try {
+            BodyCompression.of(BodyCompression.FLAG_COMPRESSED);
+            fail("resolved a codec without its bit");
+        } catch (CorruptedFrameException e) {
+            // expected
+        }
+    }
+}
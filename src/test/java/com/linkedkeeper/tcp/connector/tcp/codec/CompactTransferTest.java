@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.tcp.codec;
+
+import com.google.protobuf.ByteString;
+import com.linkedkeeper.tcp.connector.tcp.config.ServerTransportConfig;
+import com.linkedkeeper.tcp.constant.Constants;
+import com.linkedkeeper.tcp.data.Protocol;
+import com.linkedkeeper.tcp.invoke.ApiProxy;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactTransferTest {
+
+    private static MessageBuf.JMTransfer.Builder connect() {
+        return Protocol.generateHeader(1000);
+    }
+
+    private static MessageBuf.JMTransfer message() {
+        return connect()
+                .setCmd(300)
+                .setSeq(1L << 40)
+                .setFormat(1)
+                .setFlag(2)
+                .setTimeStamp("2000")
+                .setSign("sign-2")
+                .setBody(ByteString.copyFromUtf8("{\"hello\":\"world\"}"))
+                .build();
+    }
+
+    private static JMTransferDecoder decoder() {
+        return new JMTransferDecoder(new ServerTransportConfig(null, (ApiProxy) null, null));
+    }
+
+    @Test
+    public void compactRoundTripKeepsMessageFields() {
+        MessageBuf.JMTransfer message = message();
+        ByteBuf frame = CompactTransfer.encode(ByteBufAllocator.DEFAULT, message);
+        try {
+            assertTrue(CompactTransfer.isCompact(frame));
+            MessageBuf.JMTransfer decoded = CompactTransfer.decode(frame, connect().build());
+            assertEquals(message, decoded);
+            assertFalse(frame.isReadable());
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void compactRoundTripWithoutBody() {
+        MessageBuf.JMTransfer message = connect().setCmd(5).setTimeStamp("").setSign("").build();
+        ByteBuf frame = CompactTransfer.encode(ByteBufAllocator.DEFAULT, message);
+        try {
+            MessageBuf.JMTransfer decoded = CompactTransfer.decode(frame, connect().setSign("other").build());
+            assertEquals(5, decoded.getCmd());
+            assertEquals("", decoded.getTimeStamp());
+            assertEquals("", decoded.getSign());
+            assertEquals(ByteString.EMPTY, decoded.getBody());
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void peekHeaderKeepsReaderIndex() {
+        MessageBuf.JMTransfer message = message();
+        ByteBuf compact = CompactTransfer.encode(ByteBufAllocator.DEFAULT, message);
+        ByteBuf full = Unpooled.wrappedBuffer(message.toByteArray());
+        try {
+            JMTransferHeader header = CompactTransfer.peekHeader(compact);
+            assertEquals(300, header.getCmd());
+            assertEquals(1L << 40, header.getSeq());
+            assertEquals(1, header.getFormat());
+            assertEquals(0, compact.readerIndex());
+
+            header = JMTransferDecoder.peekHeader(full);
+            assertEquals(300, header.getCmd());
+            assertEquals(1L << 40, header.getSeq());
+            assertEquals(1, header.getFormat());
+            assertEquals(0, full.readerIndex());
+        } finally {
+            compact.release();
+            full.release();
+        }
+    }
+
+    @Test
+    public void peekHeaderOfTruncatedFrameIsNull() {
+        ByteBuf frame = CompactTransfer.encode(ByteBufAllocator.DEFAULT, message());
+        try {
+            assertNull(CompactTransfer.peekHeader(frame.slice(0, 2)));
+            assertNull(JMTransferDecoder.peekHeader(Unpooled.wrappedBuffer(message().toByteArray(), 0, 3)));
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void overlongFieldLengthIsCorrupted() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeByte(CompactTransfer.MAGIC);
+        CompactTransfer.writeRawVarint(frame, 300);
+        CompactTransfer.writeRawVarint(frame, 2);
+        CompactTransfer.writeRawVarint(frame, 1);
+        CompactTransfer.writeRawVarint(frame, 0);
+        // timeStamp claims more bytes than the frame has
+        CompactTransfer.writeRawVarint(frame, 100);
+        frame.writeBytes(new byte[]{'1', '2'});
+        try {
+            CompactTransfer.decode(frame, connect().build());
+            fail("decoded a frame with an overrunning field");
+        } catch (CorruptedFrameException e) {
+            // expected
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void decoderAcceptsFullAndCompactFrames() {
+        EmbeddedChannel channel = new EmbeddedChannel(decoder());
+        channel.attr(Constants.SERVER_HEADER).set(connect().build());
+        MessageBuf.JMTransfer message = message();
+
+        assertTrue(channel.writeInbound(Unpooled.wrappedBuffer(message.toByteArray())));
+        assertEquals(message, channel.readInbound());
+        assertNull(channel.attr(Constants.SERVER_COMPACT).get());
+
+        assertTrue(channel.writeInbound(CompactTransfer.encode(ByteBufAllocator.DEFAULT, message)));
+        assertEquals(message, channel.readInbound());
+        assertEquals(Boolean.TRUE, channel.attr(Constants.SERVER_COMPACT).get());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void decoderEmitsHeaderOfReplies() {
+        EmbeddedChannel channel = new EmbeddedChannel(decoder());
+        channel.attr(Constants.SERVER_HEADER).set(connect().build());
+        MessageBuf.JMTransfer reply = connect().setCmd(300).setSeq(9).setFormat(4).build();
+
+        assertTrue(channel.writeInbound(Unpooled.wrappedBuffer(reply.toByteArray())));
+        JMTransferHeader header = channel.readInbound();
+        assertEquals(300, header.getCmd());
+        assertEquals(9, header.getSeq());
+        assertEquals(4, header.getFormat());
+
+        assertTrue(channel.writeInbound(CompactTransfer.encode(ByteBufAllocator.DEFAULT, reply)));
+        header = channel.readInbound();
+        assertEquals(9, header.getSeq());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void decoderRejectsCompactFrameBeforeConnect() {
+        EmbeddedChannel channel = new EmbeddedChannel(decoder());
+        try {
+            channel.writeInbound(CompactTransfer.encode(ByteBufAllocator.DEFAULT, message()));
+            fail("decoded a compact frame without a CONNECT header");
+        } catch (CorruptedFrameException e) {
+            // expected
+        }
+        channel.finishAndReleaseAll();
+    }
+}
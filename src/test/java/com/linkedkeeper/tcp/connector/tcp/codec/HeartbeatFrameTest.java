@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.tcp.codec;
+
+import com.linkedkeeper.tcp.data.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HeartbeatFrameTest {
+
+    private static final long[] SEQS = {0, 1, 127, 128, 16384, 1L << 40, Long.MAX_VALUE};
+
+    private static ByteBuf expected(MessageBuf.JMTransfer message, boolean compact) {
+        ByteBuf payload = compact ? CompactTransfer.encode(ByteBufAllocator.DEFAULT, message)
+                : Unpooled.wrappedBuffer(message.toByteArray());
+        ByteBuf frame = Unpooled.buffer();
+        CompactTransfer.writeRawVarint(frame, payload.readableBytes());
+        frame.writeBytes(payload);
+        payload.release();
+        return frame;
+    }
+
+    private static void assertFrames(MessageBuf.JMTransfer reply) {
+        HeartbeatFrame heartbeatFrame = new HeartbeatFrame(reply);
+        for (boolean compact : new boolean[]{false, true}) {
+            for (long seq : SEQS) {
+                ByteBuf expected = expected(reply.toBuilder().setSeq(seq).build(), compact);
+                ByteBuf frame = heartbeatFrame.encode(ByteBufAllocator.DEFAULT, compact, seq);
+                try {
+                    assertEquals("compact=" + compact + ", seq=" + seq,
+                            ByteBufUtil.hexDump(expected), ByteBufUtil.hexDump(frame));
+                } finally {
+                    expected.release();
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void framesMatchTheEncoders() {
+        assertFrames(Protocol.generateHeartbeat().setFormat(2).build());
+    }
+
+    @Test
+    public void framesMatchTheEncodersWithLargeCmd() {
+        assertFrames(Protocol.generateHeartbeat().setCmd(1 << 20).clearBody().build());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
+import com.linkedkeeper.tcp.connector.tcp.config.HandshakeMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AcceptGovernorTest {
+
+    private static AcceptGovernor governor(HandshakeMetrics metrics, int maxConnections, int maxPendingHandshakes,
+                                           int acceptsPerSecond) {
+        AcceptGovernor governor = new AcceptGovernor();
+        governor.setMaxConnections(maxConnections);
+        governor.setMaxPendingHandshakes(maxPendingHandshakes);
+        governor.setAcceptsPerSecond(acceptsPerSecond);
+        governor.setRetryAfter(7);
+        governor.setRejectCmd(9);
+        governor.init(metrics);
+        return governor;
+    }
+
+    /**
+     * @return the reject reply written to a rejected channel
+     */
+    private static MessageBuf.JMTransfer readReject(EmbeddedChannel channel) throws Exception {
+        ByteBuf frame = channel.readOutbound();
+        EmbeddedChannel decoder = new EmbeddedChannel(new ProtobufVarint32FrameDecoder());
+        decoder.writeInbound(frame);
+        ByteBuf message = decoder.readInbound();
+        try {
+            byte[] bytes = new byte[message.readableBytes()];
+            message.readBytes(bytes);
+            return MessageBuf.JMTransfer.parseFrom(bytes);
+        } finally {
+            message.release();
+        }
+    }
+
+    @Test
+    public void connectionsOverTheLimitAreRejected() throws Exception {
+        AcceptGovernor governor = governor(new HandshakeMetrics(), 2, 0, 0);
+        EmbeddedChannel first = new EmbeddedChannel();
+        EmbeddedChannel second = new EmbeddedChannel();
+        EmbeddedChannel third = new EmbeddedChannel();
+        assertTrue(governor.admit(first));
+        assertTrue(governor.admit(second));
+        assertFalse(governor.admit(third));
+        assertEquals(2, governor.getConnections());
+        assertEquals(1, governor.getRejectedByConnections());
+        assertFalse(third.isOpen());
+
+        // a closed connection frees its slot
+        first.close();
+        assertEquals(1, governor.getConnections());
+        assertTrue(governor.admit(new EmbeddedChannel()));
+    }
+
+    @Test
+    public void rejectedChannelGetsTheDefaultReply() throws Exception {
+        AcceptGovernor governor = governor(new HandshakeMetrics(), 1, 0, 0);
+        assertTrue(governor.admit(new EmbeddedChannel()));
+        EmbeddedChannel rejected = new EmbeddedChannel();
+        assertFalse(governor.admit(rejected));
+
+        MessageBuf.JMTransfer reply = readReject(rejected);
+        assertEquals(9, reply.getCmd());
+        assertEquals(3, reply.getFormat());
+        assertEquals("{\"retryAfter\":7}", reply.getBody().toStringUtf8());
+    }
+
+    @Test
+    public void configuredReplyKeepsItsFields() throws Exception {
+        AcceptGovernor governor = new AcceptGovernor();
+        governor.setMaxConnections(1);
+        governor.setRetryAfter(3);
+        governor.setRejectReply(MessageBuf.JMTransfer.newBuilder()
+                .setVersion("1.0")
+                .setDeviceId("")
+                .setCmd(42)
+                .setSeq(0)
+                .setFormat(3)
+                .setFlag(0)
+                .setPlatform("")
+                .setPlatformVersion("")
+                .setToken("")
+                .setAppKey("")
+                .setTimeStamp("")
+                .setSign(""));
+        governor.init(new HandshakeMetrics());
+        assertTrue(governor.admit(new EmbeddedChannel()));
+        EmbeddedChannel rejected = new EmbeddedChannel();
+        assertFalse(governor.admit(rejected));
+
+        MessageBuf.JMTransfer reply = readReject(rejected);
+        assertEquals(42, reply.getCmd());
+        assertEquals("1.0", reply.getVersion());
+        assertEquals("{\"retryAfter\":3}", reply.getBody().toStringUtf8());
+    }
+
+    @Test
+    public void pendingHandshakesComeFromTheMetrics() throws Exception {
+        HandshakeMetrics metrics = new HandshakeMetrics();
+        AcceptGovernor governor = governor(metrics, 0, 2, 0);
+        metrics.started();
+        assertTrue(governor.admit(new EmbeddedChannel()));
+        metrics.started();
+        EmbeddedChannel rejected = new EmbeddedChannel();
+        assertFalse(governor.admit(rejected));
+        assertEquals(1, governor.getRejectedByHandshakes());
+        assertEquals(1, governor.getConnections());
+
+        metrics.completed(1000000L);
+        assertTrue(governor.admit(new EmbeddedChannel()));
+        assertEquals(2, governor.getConnections());
+    }
+
+    @Test
+    public void acceptsOverTheRateAreRejected() throws Exception {
+        AcceptGovernor governor = governor(new HandshakeMetrics(), 0, 0, 1);
+        assertTrue(governor.admit(new EmbeddedChannel()));
+        assertFalse(governor.admit(new EmbeddedChannel()));
+        assertEquals(1, governor.getRejectedByRate());
+        assertEquals(1, governor.getConnections());
+    }
+}
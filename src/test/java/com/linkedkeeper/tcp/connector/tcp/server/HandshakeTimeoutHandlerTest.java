@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import com.linkedkeeper.tcp.connector.tcp.config.HandshakeMetrics;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HandshakeTimeoutHandlerTest {
+
+    /**
+     * Handler whose deadline is run by the test instead of the clock.
+     */
+    private static class ManualTimeoutHandler extends HandshakeTimeoutHandler {
+
+        private Runnable deadline;
+        private ScheduledFuture<?> future;
+
+        ManualTimeoutHandler(long timeoutMillis, HandshakeMetrics metrics) {
+            super(timeoutMillis, metrics);
+        }
+
+        @Override
+        ScheduledFuture<?> schedule(ChannelHandlerContext ctx, Runnable task, long delayMillis) {
+            deadline = task;
+            future = ctx.executor().schedule(task, 1, TimeUnit.DAYS);
+            return future;
+        }
+
+        void expire() {
+            if (future.cancel(false)) {
+                deadline.run();
+            }
+        }
+    }
+
+    @Test
+    public void channelWithoutConnectIsClosed() {
+        HandshakeMetrics metrics = new HandshakeMetrics();
+        ManualTimeoutHandler handler = new ManualTimeoutHandler(50, metrics);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        assertEquals(1, metrics.getPending());
+
+        handler.expire();
+        assertFalse(channel.isOpen());
+        assertEquals(0, metrics.getPending());
+        assertEquals(1, metrics.getTimeouts());
+        assertEquals(0, metrics.getAbandoned());
+    }
+
+    @Test
+    public void connectCancelsTheDeadline() {
+        HandshakeMetrics metrics = new HandshakeMetrics();
+        ManualTimeoutHandler handler = new ManualTimeoutHandler(50, metrics);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.pipeline().fireUserEventTriggered(HandshakeEvent.COMPLETED);
+        assertNull(channel.pipeline().get(HandshakeTimeoutHandler.class));
+        assertEquals(0, metrics.getPending());
+        assertEquals(1, metrics.getCompleted());
+
+        assertTrue(handler.future.isCancelled());
+        // a deadline already running when CONNECT completes finds the handshake done
+        handler.deadline.run();
+        assertTrue(channel.isOpen());
+        assertEquals(0, metrics.getTimeouts());
+
+        // closing after CONNECT is not an abandoned handshake
+        channel.close();
+        assertEquals(0, metrics.getAbandoned());
+    }
+
+    @Test
+    public void clientClosingBeforeConnectIsAbandoned() {
+        HandshakeMetrics metrics = new HandshakeMetrics();
+        EmbeddedChannel channel = new EmbeddedChannel(new HandshakeTimeoutHandler(10000, metrics));
+        channel.close();
+        assertEquals(0, metrics.getPending());
+        assertEquals(1, metrics.getAbandoned());
+        assertEquals(0, metrics.getTimeouts());
+    }
+
+    @Test
+    public void zeroTimeoutOnlyCounts() {
+        HandshakeMetrics metrics = new HandshakeMetrics();
+        ManualTimeoutHandler handler = new ManualTimeoutHandler(0, metrics);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        assertEquals(1, metrics.getPending());
+        assertNull(handler.deadline);
+        assertTrue(channel.isOpen());
+        assertEquals(1, metrics.getPending());
+
+        channel.pipeline().fireUserEventTriggered(HandshakeEvent.COMPLETED);
+        assertEquals(0, metrics.getPending());
+        assertEquals(1, metrics.getCompleted());
+    }
+}
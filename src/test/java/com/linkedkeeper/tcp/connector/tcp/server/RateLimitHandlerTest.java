@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
+import com.linkedkeeper.tcp.constant.Constants;
+import com.linkedkeeper.tcp.data.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimitHandlerTest {
+
+    /**
+     * Limiter on a clock moved by the test, resumes run when the clock passes them.
+     */
+    private static class ManualLimiter extends InboundRateLimiter {
+
+        private long now = 1000000000L;
+        private final List<Object[]> scheduled = new ArrayList<Object[]>();
+
+        @Override
+        long nanoTime() {
+            return now;
+        }
+
+        @Override
+        ScheduledFuture<?> schedule(ChannelHandlerContext ctx, Runnable task, long delayNanos) {
+            // never fires by itself, run by advance()
+            ScheduledFuture<?> future = ctx.executor().schedule(task, 1, TimeUnit.DAYS);
+            scheduled.add(new Object[]{now + delayNanos, task, future});
+            return future;
+        }
+
+        void advance(long millis) {
+            now += TimeUnit.MILLISECONDS.toNanos(millis);
+            for (Object[] entry : new ArrayList<Object[]>(scheduled)) {
+                ScheduledFuture<?> future = (ScheduledFuture<?>) entry[2];
+                if ((Long) entry[0] <= now && future.cancel(false)) {
+                    scheduled.remove(entry);
+                    ((Runnable) entry[1]).run();
+                }
+            }
+        }
+    }
+
+    private static MessageBuf.JMTransfer header(String appKey) {
+        return Protocol.generateHeader(1000).setAppKey(appKey).build();
+    }
+
+    private static EmbeddedChannel channel(InboundRateLimiter limiter, String appKey) {
+        EmbeddedChannel channel = new EmbeddedChannel(new RateLimitHandler(limiter));
+        if (appKey != null) {
+            channel.attr(Constants.SERVER_HEADER).set(header(appKey));
+        }
+        return channel;
+    }
+
+    @Test
+    public void tokenBucketAllowsBurstThenRate() {
+        long now = System.nanoTime();
+        TokenBucket bucket = new TokenBucket(10, 3, now);
+        assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(0, bucket.tryAcquire(now));
+        long wait = bucket.tryAcquire(now);
+        assertTrue(wait > 0 && wait <= 100000000L);
+        assertEquals(0, bucket.tryAcquire(now + wait));
+    }
+
+    @Test
+    public void refundGivesTheTokenBack() {
+        long now = System.nanoTime();
+        TokenBucket bucket = new TokenBucket(10, 1, now);
+        assertEquals(0, bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now) > 0);
+        bucket.refund();
+        assertEquals(0, bucket.tryAcquire(now));
+    }
+
+    @Test
+    public void overTheRateStopsReadingAndKeepsOrder() {
+        ManualLimiter limiter = new ManualLimiter();
+        limiter.setSessionRate(20);
+        limiter.setSessionBurst(2);
+        EmbeddedChannel channel = channel(limiter, null);
+
+        channel.writeInbound("m1", "m2", "m3", "m4");
+        assertEquals("m1", channel.readInbound());
+        assertEquals("m2", channel.readInbound());
+        assertNull(channel.readInbound());
+        assertFalse(channel.config().isAutoRead());
+        assertEquals(1, limiter.getThrottledCount());
+
+        // one token at 20 per second, the other message waits for the next one
+        limiter.advance(50);
+        assertEquals("m3", channel.readInbound());
+        assertNull(channel.readInbound());
+        assertFalse(channel.config().isAutoRead());
+        limiter.advance(50);
+        assertEquals("m4", channel.readInbound());
+        assertTrue(channel.config().isAutoRead());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void heldMessageIsChargedOnce() {
+        ManualLimiter limiter = new ManualLimiter();
+        // the session bucket refills in a second, the appKey bucket in 200ms
+        limiter.setSessionRate(1);
+        limiter.setSessionBurst(2);
+        limiter.setAppKeyRate(5);
+        limiter.setAppKeyBurst(1);
+        EmbeddedChannel channel = channel(limiter, "app");
+
+        channel.writeInbound("m1", "m2");
+        assertEquals("m1", channel.readInbound());
+        assertNull(channel.readInbound());
+
+        // passes only if the session token taken before the appKey refusal was given back
+        limiter.advance(200);
+        assertEquals("m2", channel.readInbound());
+        assertTrue(channel.config().isAutoRead());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void appKeyBucketLivesWhileItsChannelsDo() {
+        InboundRateLimiter limiter = new InboundRateLimiter();
+        limiter.setAppKeyRate(1000);
+        EmbeddedChannel first = channel(limiter, "app");
+        EmbeddedChannel second = channel(limiter, "app");
+        EmbeddedChannel other = channel(limiter, "other");
+        assertEquals(0, limiter.getAppKeyBucketCount());
+
+        first.writeInbound("m1");
+        second.writeInbound("m1");
+        other.writeInbound("m1");
+        assertEquals(2, limiter.getAppKeyBucketCount());
+
+        // the appKey of a channel changes
+        other.attr(Constants.SERVER_HEADER).set(header("app"));
+        other.writeInbound("m2");
+        assertEquals(1, limiter.getAppKeyBucketCount());
+
+        first.finishAndReleaseAll();
+        second.finishAndReleaseAll();
+        assertEquals(1, limiter.getAppKeyBucketCount());
+        other.finishAndReleaseAll();
+        assertEquals(0, limiter.getAppKeyBucketCount());
+    }
+
+    @Test
+    public void heldMessagesAreReleasedOnClose() {
+        InboundRateLimiter limiter = new InboundRateLimiter();
+        limiter.setSessionRate(1);
+        limiter.setSessionBurst(1);
+        EmbeddedChannel channel = channel(limiter, null);
+        ByteBuf held = Unpooled.buffer(4).writeInt(1);
+
+        channel.writeInbound("m1", held);
+        assertEquals("m1", channel.readInbound());
+        assertEquals(1, held.refCnt());
+        channel.close();
+        assertEquals(0, held.refCnt());
+    }
+
+    @Test
+    public void connectGateKeepsReadingPausedWhenTheRateResumes() {
+        ManualLimiter limiter = new ManualLimiter();
+        limiter.setSessionRate(10);
+        limiter.setSessionBurst(1);
+        ConnectGate gate = new ConnectGate();
+        EmbeddedChannel channel = new EmbeddedChannel(gate, new RateLimitHandler(limiter));
+
+        channel.writeInbound("m1", "m2");
+        assertEquals("m1", channel.readInbound());
+        // e.g. m1 is an offloaded CONNECT
+        gate.close();
+        limiter.advance(100);
+        assertEquals("m2", channel.readInbound());
+        assertFalse(channel.config().isAutoRead());
+
+        gate.open();
+        assertTrue(channel.config().isAutoRead());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void rateLimitKeepsReadingPausedWhenTheGateOpens() {
+        ManualLimiter limiter = new ManualLimiter();
+        limiter.setSessionRate(10);
+        limiter.setSessionBurst(1);
+        ConnectGate gate = new ConnectGate();
+        EmbeddedChannel channel = new EmbeddedChannel(gate, new RateLimitHandler(limiter));
+
+        channel.writeInbound("m1", "m2");
+        assertEquals("m1", channel.readInbound());
+        gate.close();
+        gate.open();
+        assertFalse(channel.config().isAutoRead());
+
+        limiter.advance(100);
+        assertEquals("m2", channel.readInbound());
+        assertTrue(channel.config().isAutoRead());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void floodOfHeldMessagesClosesTheChannel() {
+        ManualLimiter limiter = new ManualLimiter();
+        limiter.setSessionRate(1);
+        limiter.setSessionBurst(1);
+        EmbeddedChannel channel = channel(limiter, null);
+
+        channel.writeInbound("m0");
+        for (int i = 0; i < RateLimitHandler.MAX_HELD_MESSAGES; i++) {
+            channel.writeInbound("m" + (i + 1));
+        }
+        assertTrue(channel.isOpen());
+        ByteBuf over = Unpooled.buffer(4).writeInt(1);
+        channel.writeInbound(over);
+        assertFalse(channel.isOpen());
+        assertEquals(0, over.refCnt());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.connector.tcp.server;
+
+import com.linkedkeeper.tcp.connector.tcp.codec.MessageBuf;
+import com.linkedkeeper.tcp.connector.tcp.config.ServerTransportConfig;
+import com.linkedkeeper.tcp.data.Protocol;
+import com.linkedkeeper.tcp.invoke.ApiProxy;
+import com.linkedkeeper.tcp.invoke.InvokeExecutor;
+import com.linkedkeeper.tcp.message.MessageWrapper;
+import com.linkedkeeper.tcp.message.SystemMessage;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TcpServerHandlerTest {
+
+    private static EmbeddedChannel channel(ChannelHandler... handlers) {
+        return new EmbeddedChannel(handlers) {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return new InetSocketAddress("127.0.0.1", 40000);
+            }
+
+            @Override
+            protected SocketAddress localAddress0() {
+                return new InetSocketAddress("127.0.0.1", 9000);
+            }
+        };
+    }
+
+    @Test
+    public void discardedFirstMessageOpensTheGate() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger invoked = new AtomicInteger();
+        ApiProxy proxy = new ApiProxy() {
+            public MessageWrapper invoke(SystemMessage sMsg, MessageBuf.JMTransfer message) {
+                invoked.incrementAndGet();
+                entered.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        };
+        InvokeExecutor executor = new InvokeExecutor();
+        executor.setLanes(1);
+        executor.setQueueCapacity(1);
+        executor.setRejectPolicy(InvokeExecutor.RejectPolicy.DISCARD);
+        executor.init();
+        ServerTransportConfig config = new ServerTransportConfig(null, proxy, null);
+        config.setInvokeExecutor(executor);
+        try {
+            MessageBuf.JMTransfer connect = Protocol.generateConnect().build();
+            // the lane runs the first channel's CONNECT and queues the second one
+            EmbeddedChannel running = channel(new ConnectGate(), new TcpServerHandler(config));
+            running.writeInbound(connect);
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+            EmbeddedChannel queued = channel(new ConnectGate(), new TcpServerHandler(config));
+            queued.writeInbound(connect);
+            assertFalse(queued.config().isAutoRead());
+
+            EmbeddedChannel discarded = channel(new ConnectGate(), new TcpServerHandler(config));
+            discarded.writeInbound(connect);
+            assertEquals(1, executor.getRejectedCount());
+            assertTrue(discarded.isOpen());
+            assertTrue(discarded.config().isAutoRead());
+
+            // the next frame is not held behind the discarded one
+            discarded.writeInbound(connect);
+            assertEquals(2, executor.getRejectedCount());
+        } finally {
+            release.countDown();
+            executor.destroy();
+        }
+    }
+}
@@ -37,11 +37,14 @@ import java.util.Date;
 
 public class Protocol {
 
-    public static MessageBuf.JMTransfer.Builder generateConnect() {
+    /**
+     * Header fields of a message, without body.
+     */
+    public static MessageBuf.JMTransfer.Builder generateHeader(int cmd) {
         MessageBuf.JMTransfer.Builder builder = MessageBuf.JMTransfer.newBuilder();
         builder.setVersion("1.0");
         builder.setDeviceId("test");
-        builder.setCmd(1000);
+        builder.setCmd(cmd);
         builder.setSeq(1234);
         builder.setFormat(1);
         builder.setFlag(1);
@@ -51,6 +54,11 @@ public class Protocol {
         builder.setAppKey("123");
         builder.setTimeStamp("123456");
         builder.setSign("123");
+        return builder;
+    }
+
+    public static MessageBuf.JMTransfer.Builder generateConnect() {
+        MessageBuf.JMTransfer.Builder builder = generateHeader(1000);
 
         Login.MessageBufPro.MessageReq.Builder logReq = Login.MessageBufPro.MessageReq.newBuilder();
         logReq.setMethod("connect");
@@ -69,19 +77,7 @@ public class Protocol {
     }
 
     public static MessageBuf.JMTransfer.Builder generateHeartbeat() {
-        MessageBuf.JMTransfer.Builder builder = MessageBuf.JMTransfer.newBuilder();
-        builder.setVersion("1.0");
-        builder.setDeviceId("test");
-        builder.setCmd(1002);
-        builder.setSeq(1234);
-        builder.setFormat(1);
-        builder.setFlag(1);
-        builder.setPlatform("pc");
-        builder.setPlatformVersion("1.0");
-        builder.setToken("abc");
-        builder.setAppKey("123");
-        builder.setTimeStamp("123456");
-        builder.setSign("123");
+        MessageBuf.JMTransfer.Builder builder = generateHeader(1002);
 
         Login.MessageBufPro.MessageReq.Builder heartbeatReq = Login.MessageBufPro.MessageReq.newBuilder();
         heartbeatReq.setMethod("123");
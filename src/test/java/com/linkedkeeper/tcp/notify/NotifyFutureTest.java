@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.linkedkeeper.tcp.notify;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NotifyFutureTest {
+
+    @Test
+    public void waitersAreWokenOnFailure() throws Exception {
+        final NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(10000);
+        int threads = 8;
+        final CountDownLatch started = new CountDownLatch(threads);
+        final AtomicInteger woken = new AtomicInteger();
+        List<Thread> waiters = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        if (future.await(10, TimeUnit.SECONDS)) {
+                            woken.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        // counted as not woken
+                    }
+                }
+            });
+            thread.start();
+            waiters.add(thread);
+        }
+        started.await();
+        // let the waiters park
+        Thread.sleep(100);
+        IllegalStateException cause = new IllegalStateException("write failed");
+        assertTrue(future.tryFailure(cause));
+        for (Thread thread : waiters) {
+            thread.join(2000);
+            assertFalse(thread.isAlive());
+        }
+        assertEquals(threads, woken.get());
+        assertEquals(NotifyFuture.State.FAILURE, future.getState());
+        assertSame(cause, future.cause());
+        assertNull(future.getNow());
+    }
+
+    @Test
+    public void timeoutExceptionCompletesInTimeoutState() {
+        NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(1000);
+        assertTrue(future.tryFailure(new TimeoutException()));
+        assertTrue(future.isTimeout());
+        assertFalse(future.trySuccess(true));
+    }
+
+    @Test
+    public void listenersAddedDuringCompletionAreNotifiedOnce() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            final NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(1000);
+            final int adders = 4;
+            final int perAdder = 50;
+            final AtomicInteger notified = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            final NotifyListener<Boolean> listener = new NotifyListener<Boolean>() {
+                public void operationComplete(NotifyFuture<Boolean> f) {
+                    notified.incrementAndGet();
+                }
+            };
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < adders; i++) {
+                threads.add(new Thread(new Runnable() {
+                    public void run() {
+                        await(start);
+                        for (int n = 0; n < perAdder; n++) {
+                            future.addListener(listener);
+                        }
+                    }
+                }));
+            }
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    await(start);
+                    future.trySuccess(true);
+                }
+            }));
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(adders * perAdder, notified.get());
+        }
+    }
+
+    @Test
+    public void removedListenerIsNotNotified() {
+        NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(1000);
+        final AtomicInteger removed = new AtomicInteger();
+        final AtomicInteger kept = new AtomicInteger();
+        NotifyListener<Boolean> removedListener = new NotifyListener<Boolean>() {
+            public void operationComplete(NotifyFuture<Boolean> f) {
+                removed.incrementAndGet();
+            }
+        };
+        NotifyListener<Boolean> keptListener = new NotifyListener<Boolean>() {
+            public void operationComplete(NotifyFuture<Boolean> f) {
+                kept.incrementAndGet();
+            }
+        };
+        future.addListener(keptListener).addListener(removedListener).removeListener(removedListener);
+        assertTrue(future.trySuccess(true));
+        assertEquals(0, removed.get());
+        assertEquals(1, kept.get());
+    }
+
+    @Test
+    public void listenerAddedAfterCompletionIsNotifiedAtOnce() {
+        NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(1000);
+        future.trySuccess(true);
+        final AtomicInteger notified = new AtomicInteger();
+        future.addListener(new NotifyListener<Boolean>() {
+            public void operationComplete(NotifyFuture<Boolean> f) {
+                notified.incrementAndGet();
+            }
+        });
+        assertEquals(1, notified.get());
+        assertTrue(future.getNow());
+    }
+
+    @Test
+    public void cancelWinsOverLaterReply() {
+        NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(1000);
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertFalse(future.trySuccess(true));
+        assertFalse(future.cancel(false));
+        assertNull(future.getNow());
+    }
+
+    @Test
+    public void timedOutWaitersAreUnlinked() throws Exception {
+        NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(1000);
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(future.await(1, TimeUnit.MICROSECONDS));
+        }
+        assertEquals(0, future.waiterCount());
+
+        NotifyListener<Boolean> listener = new NotifyListener<Boolean>() {
+            public void operationComplete(NotifyFuture<Boolean> f) {
+            }
+        };
+        future.addListener(listener);
+        assertEquals(1, future.waiterCount());
+        future.removeListener(listener);
+        assertEquals(0, future.waiterCount());
+    }
+
+    @Test
+    public void concurrentTimeoutsKeepLiveWaiters() throws Exception {
+        final NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(10000);
+        final AtomicInteger notified = new AtomicInteger();
+        final AtomicInteger woken = new AtomicInteger();
+        future.addListener(new NotifyListener<Boolean>() {
+            public void operationComplete(NotifyFuture<Boolean> f) {
+                notified.incrementAndGet();
+            }
+        });
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    if (future.await(10, TimeUnit.SECONDS)) {
+                        woken.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    // counted as not woken
+                }
+            }
+        });
+        waiter.start();
+        while (future.waiterCount() < 2) {
+            Thread.yield();
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    await(start);
+                    for (int i = 0; i < 500; i++) {
+                        try {
+                            future.await(1, TimeUnit.MICROSECONDS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // the parked waiter and the listener
+        assertEquals(2, future.waiterCount());
+
+        assertTrue(future.trySuccess(true));
+        waiter.join(2000);
+        assertEquals(1, woken.get());
+        assertEquals(1, notified.get());
+        assertEquals(0, future.waiterCount());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2016, LinkedKeeper
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of LinkedKeeper nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.linkedkeeper.tcp.notify;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PendingNotifyTableTest {
+
+    /**
+     * Timer whose timeouts are run by the test instead of the clock.
+     */
+    private static class ManualTimer implements Timer {
+
+        private final List<ManualTimeout> timeouts = new ArrayList<ManualTimeout>();
+
+        public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+            ManualTimeout timeout = new ManualTimeout(this, task);
+            timeouts.add(timeout);
+            return timeout;
+        }
+
+        public Set<Timeout> stop() {
+            return Collections.emptySet();
+        }
+
+        void expireAll() throws Exception {
+            for (ManualTimeout timeout : new ArrayList<ManualTimeout>(timeouts)) {
+                timeout.expire();
+            }
+        }
+    }
+
+    private static class ManualTimeout implements Timeout {
+
+        private final ManualTimer timer;
+        private final TimerTask task;
+        private boolean cancelled;
+        private boolean expired;
+
+        ManualTimeout(ManualTimer timer, TimerTask task) {
+            this.timer = timer;
+            this.task = task;
+        }
+
+        void expire() throws Exception {
+            if (!cancelled && !expired) {
+                expired = true;
+                task.run(this);
+            }
+        }
+
+        public Timer timer() {
+            return timer;
+        }
+
+        public TimerTask task() {
+            return task;
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean cancel() {
+            if (expired || cancelled) {
+                return false;
+            }
+            cancelled = true;
+            return true;
+        }
+    }
+
+    private final PendingNotifyTable table = new PendingNotifyTable(4, 10, 0);
+    private final ManualTimer manualTimer = new ManualTimer();
+    private final PendingNotifyTable manualTable = new PendingNotifyTable(4, manualTimer, 0);
+
+    @After
+    public void stop() {
+        table.stop();
+        manualTable.stop();
+    }
+
+    @Test
+    public void unansweredNotifyExpires() throws Exception {
+        NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(50);
+        manualTable.put(1, future, 50);
+        assertEquals(1, manualTable.getPendingCount());
+
+        manualTimer.expireAll();
+        assertTrue(future.isDone());
+        assertTrue(future.cause() instanceof TimeoutException);
+        assertEquals(0, manualTable.getPendingCount());
+        assertEquals(1, manualTable.getTimeoutCount());
+        assertNull(manualTable.remove(1));
+    }
+
+    @Test
+    public void replyCancelsTheTimeout() throws Exception {
+        NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(100);
+        manualTable.put(2, future, 100);
+        assertSame(future, manualTable.remove(2));
+        assertEquals(0, manualTable.getPendingCount());
+        assertEquals(1, manualTable.getReplyCount());
+        assertTrue(manualTimer.timeouts.get(0).isCancelled());
+
+        manualTimer.expireAll();
+        assertFalse(future.isDone());
+        assertEquals(0, manualTable.getTimeoutCount());
+    }
+
+    @Test
+    public void timeoutRacingAReplyIsIgnored() throws Exception {
+        NotifyFuture<Boolean> future = new NotifyFuture<Boolean>(100);
+        manualTable.put(5, future, 100);
+        ManualTimeout timeout = manualTimer.timeouts.get(0);
+        assertSame(future, manualTable.remove(5));
+
+        // the timer thread already took the timeout before the reply cancelled it
+        timeout.task().run(timeout);
+        assertFalse(future.isDone());
+        assertEquals(0, manualTable.getTimeoutCount());
+        assertEquals(0, manualTable.getPendingCount());
+    }
+
+    @Test
+    public void reusedSeqFailsTheOldFuture() throws Exception {
+        NotifyFuture<Boolean> old = new NotifyFuture<Boolean>(10000);
+        NotifyFuture<Boolean> current = new NotifyFuture<Boolean>(10000);
+        table.put(3, old, 10000);
+        table.put(3, current, 10000);
+        assertTrue(old.isDone());
+        assertTrue(old.cause() instanceof IllegalStateException);
+        assertEquals(1, table.getPendingCount());
+        assertSame(current, table.remove(3));
+    }
+
+    @Test
+    public void conditionalRemoveKeepsANewerFuture() {
+        NotifyFuture<Boolean> old = new NotifyFuture<Boolean>(10000);
+        NotifyFuture<Boolean> current = new NotifyFuture<Boolean>(10000);
+        table.put(4, old, 10000);
+        table.put(4, current, 10000);
+        assertFalse(table.remove(4, old));
+        assertEquals(1, table.getPendingCount());
+        assertTrue(table.remove(4, current));
+        assertEquals(0, table.getPendingCount());
+        // not a reply
+        assertEquals(0, table.getReplyCount());
+    }
+
+    @Test
+    public void manyNotifiesExpireAcrossSegments() throws Exception {
+        int count = 1000;
+        NotifyFuture[] futures = new NotifyFuture[count];
+        for (int i = 0; i < count; i++) {
+            // even seqs get their reply, odd ones expire
+            int timeout = i % 2 == 0 ? 10000 : 50;
+            futures[i] = new NotifyFuture<Boolean>(timeout);
+            table.put(((long) i << 32) | i, futures[i], timeout);
+        }
+        for (int i = 0; i < count; i += 2) {
+            assertSame(futures[i], table.remove(((long) i << 32) | i));
+        }
+        for (int i = 1; i < count; i += 2) {
+            assertTrue(futures[i].await(5, TimeUnit.SECONDS));
+        }
+        assertEquals(0, table.getPendingCount());
+        assertEquals(count / 2, table.getReplyCount());
+        assertEquals(count / 2, table.getTimeoutCount());
+    }
+}